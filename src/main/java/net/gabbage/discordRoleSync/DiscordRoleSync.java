@@ -8,11 +8,16 @@ import net.gabbage.discordRoleSync.managers.ConfigManager;
 import net.gabbage.discordRoleSync.managers.DiscordManager;
 import net.gabbage.discordRoleSync.managers.LinkManager; // Import LinkManager
 import net.gabbage.discordRoleSync.listeners.PlayerJoinListener; // Import the new listener
+import net.gabbage.discordRoleSync.permissions.GroupChangeSource;
+import net.gabbage.discordRoleSync.permissions.InMemoryPermission;
+import net.gabbage.discordRoleSync.permissions.JoinQuitGroupChangeSource;
+import net.gabbage.discordRoleSync.permissions.LuckPermsGroupChangeSource;
 import net.gabbage.discordRoleSync.service.RoleSyncService;
 import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
 import net.gabbage.discordRoleSync.tasks.PeriodicSyncTask;
 import net.milkbowl.vault.permission.Permission;
 import org.bukkit.plugin.RegisteredServiceProvider;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask; // Import BukkitTask
 
@@ -29,6 +34,7 @@ public final class DiscordRoleSync extends JavaPlugin {
     private static Permission vaultPermissions = null; // Static Vault Permission object
     private static final Logger log = Logger.getLogger("Minecraft"); // Static logger for setup messages
     private BukkitTask periodicSyncTask;
+    private GroupChangeSource groupChangeSource;
 
 
     @Override
@@ -85,11 +91,12 @@ public final class DiscordRoleSync extends JavaPlugin {
 
         // Register Event Listeners
         getServer().getPluginManager().registerEvents(new PlayerJoinListener(this), this);
+        setupGroupChangeSource();
 
         // Schedule Periodic Sync Task
         long syncIntervalTicks = configManager.getSyncInterval() * 60L * 20L; // interval in minutes to ticks
         if (syncIntervalTicks > 0) {
-            periodicSyncTask = new PeriodicSyncTask(this).runTaskTimerAsynchronously(this, 20L * 60, syncIntervalTicks); // Initial delay 1 minute, then repeat
+            periodicSyncTask = new PeriodicSyncTask(this).runTaskTimerAsynchronously(this, 20L * 60, PeriodicSyncTask.SLICE_PERIOD_TICKS); // Initial delay 1 minute, then each pass is spread over the interval
             getLogger().info("Periodic role synchronization task scheduled to run every " + configManager.getSyncInterval() + " minutes.");
         } else {
             getLogger().info("Periodic sync interval is 0 or negative. Task will not be scheduled."); // Changed to info from warning
@@ -101,6 +108,11 @@ public final class DiscordRoleSync extends JavaPlugin {
             log.warning(String.format("[%s] Vault not found! Permissions integration will not work.", getDescription().getName()));
             return false;
         }
+        if ("memory".equalsIgnoreCase(configManager.getGroupChangeSource())) {
+            // Test/benchmark stand-in for a permission plugin; takes precedence over any installed provider
+            getServer().getServicesManager().register(Permission.class, new InMemoryPermission(this), this, ServicePriority.Highest);
+            log.warning(String.format("[%s] Using the in-memory permission provider. Groups will not be saved!", getDescription().getName()));
+        }
         RegisteredServiceProvider<Permission> rsp = getServer().getServicesManager().getRegistration(Permission.class);
         if (rsp == null) {
             log.warning(String.format("[%s] No Vault Permission provider found. Is a permissions plugin installed?", getDescription().getName()));
@@ -115,6 +127,46 @@ public final class DiscordRoleSync extends JavaPlugin {
         return true;
     }
 
+    private void setupGroupChangeSource() {
+        String source = configManager.getGroupChangeSource().toLowerCase(java.util.Locale.ROOT);
+        boolean luckPermsInstalled = getServer().getPluginManager().getPlugin("LuckPerms") != null;
+        switch (source) {
+            case "none":
+                getLogger().info("In-game group changes are only picked up by periodic and join synchronization.");
+                return;
+            case "memory":
+                if (vaultPermissions instanceof InMemoryPermission) {
+                    groupChangeSource = (InMemoryPermission) vaultPermissions;
+                }
+                break;
+            case "auto":
+            case "luckperms":
+                if (luckPermsInstalled) {
+                    groupChangeSource = new LuckPermsGroupChangeSource(this);
+                } else if (source.equals("luckperms")) {
+                    getLogger().warning("sync.group-change-source is 'luckperms' but LuckPerms is not installed. Falling back to join/quit detection.");
+                }
+                break;
+            case "join-quit":
+                break;
+            default:
+                getLogger().warning("Unknown sync.group-change-source '" + source + "'. Falling back to join/quit detection.");
+        }
+        if (groupChangeSource != null) {
+            try {
+                groupChangeSource.register();
+            } catch (IllegalStateException | LinkageError e) { // LuckPerms installed but its API is not available
+                getLogger().warning("Could not listen to " + groupChangeSource.getName() + " group changes (" + e + "). Falling back to join/quit detection.");
+                groupChangeSource = null;
+            }
+        }
+        if (groupChangeSource == null) {
+            groupChangeSource = new JoinQuitGroupChangeSource(this);
+            groupChangeSource.register();
+        }
+        getLogger().info("Watching in-game group changes using " + groupChangeSource.getName() + ".");
+    }
+
 
     @Override
     public void onDisable() {
@@ -131,6 +183,15 @@ public final class DiscordRoleSync extends JavaPlugin {
         }
         periodicSyncTask = null; // Clear the reference
 
+        if (groupChangeSource != null) {
+            groupChangeSource.unregister();
+            groupChangeSource = null;
+        }
+        if (vaultPermissions instanceof InMemoryPermission) {
+            getServer().getServicesManager().unregister(Permission.class, vaultPermissions);
+            vaultPermissions = null;
+        }
+
         // Disconnect Discord Bot
         if (discordManager != null) {
             discordManager.disconnect();
@@ -141,6 +202,9 @@ public final class DiscordRoleSync extends JavaPlugin {
         // or to prevent issues if plugin is partially re-enabled without full lifecycle
         roleSyncService = null;
         linkManager = null;
+        if (linkedPlayersManager != null) {
+            linkedPlayersManager.shutdown(); // Release the link journal
+        }
         linkedPlayersManager = null;
         configManager = null;
         // vaultPermissions is static and managed by Vault, usually no need to null it here
@@ -4,6 +4,7 @@ import net.gabbage.discordRoleSync.DiscordRoleSync;
 import net.gabbage.discordRoleSync.commands.discord.IDiscordSubCommand;
 import net.gabbage.discordRoleSync.commands.discord.InspectSubCommand;
 import net.gabbage.discordRoleSync.commands.discord.ManualLinkSubCommand; // Import ManualLinkSubCommand
+import net.gabbage.discordRoleSync.commands.discord.QueueSubCommand;
 import net.gabbage.discordRoleSync.commands.discord.ReloadSubCommand;
 import net.gabbage.discordRoleSync.commands.discord.RolesSubCommand; // Import RolesSubCommand
 import net.gabbage.discordRoleSync.commands.discord.StatusSubCommand;
@@ -43,6 +44,7 @@ public class DiscordCommand implements CommandExecutor, TabCompleter {
         registerSubCommand(new ManualLinkSubCommand()); // Register ManualLinkSubCommand
         registerSubCommand(new RolesSubCommand()); // Register RolesSubCommand
         registerSubCommand(new SyncSubCommand()); // Register SyncSubCommand
+        registerSubCommand(new QueueSubCommand());
         registerSubCommand(this.defaultSubCommand); // Register status as a fallback/default
     }
 
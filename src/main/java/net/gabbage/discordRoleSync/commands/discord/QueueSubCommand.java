@@ -0,0 +1,58 @@
+package net.gabbage.discordRoleSync.commands.discord;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+import net.gabbage.discordRoleSync.managers.ConfigManager;
+import net.gabbage.discordRoleSync.managers.DiscordManager;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+public class QueueSubCommand implements IDiscordSubCommand {
+
+    @Override
+    public String getName() {
+        return "queue";
+    }
+
+    @Override
+    public String getPermission() {
+        return "discordrolesync.queue";
+    }
+
+    @Override
+    public void execute(@NotNull DiscordRoleSync plugin, @NotNull CommandSender sender, @NotNull String[] args) {
+        ConfigManager configManager = plugin.getConfigManager();
+
+        DiscordManager discordManager = plugin.getDiscordManager();
+        DiscordTaskQueue queue = discordManager != null ? discordManager.getDiscordTaskQueue() : null;
+        if (queue == null) {
+            sender.sendMessage(configManager.getMessage("queue.not_available"));
+            return;
+        }
+
+        sender.sendMessage(configManager.getMessage("queue.header",
+                "%running%", String.valueOf(queue.getRunningCount()),
+                "%parallelism%", String.valueOf(queue.getParallelism()),
+                "%queued%", String.valueOf(queue.getCapacity() - queue.getRemainingCapacity()),
+                "%capacity%", String.valueOf(queue.getCapacity())
+        ));
+        for (DiscordTaskQueue.LaneStats lane : queue.getLaneStats()) {
+            sender.sendMessage(configManager.getMessage("queue.lane_entry",
+                    "%lane%", lane.priority().name(),
+                    "%weight%", String.valueOf(lane.priority().getWeight()),
+                    "%queued%", String.valueOf(lane.queued()),
+                    "%average_wait_ms%", String.valueOf(lane.averageWaitMillis()),
+                    "%started%", String.valueOf(lane.started())
+            ));
+        }
+        sender.sendMessage(configManager.getMessage("queue.footer"));
+    }
+
+    @Override
+    public List<String> onTabComplete(@NotNull DiscordRoleSync plugin, @NotNull CommandSender sender, @NotNull String[] args) {
+        return Collections.emptyList(); // No arguments for this command
+    }
+}
@@ -3,6 +3,7 @@ package net.gabbage.discordRoleSync.commands.discord;
 import net.gabbage.discordRoleSync.DiscordRoleSync;
 import net.gabbage.discordRoleSync.managers.ConfigManager;
 import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue.Priority;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
@@ -75,7 +76,7 @@ public class SyncSubCommand implements IDiscordSubCommand {
             return;
         }
 
-        plugin.getRoleSyncService().synchronizeRoles(targetUUID, discordId);
+        plugin.getRoleSyncService().synchronizeRoles(targetUUID, discordId, true, Priority.ADMIN); // Explicit request, never skipped
         sender.sendMessage(configManager.getMessage("sync.success", "%mc_username%", actualMcUsername));
     }
 
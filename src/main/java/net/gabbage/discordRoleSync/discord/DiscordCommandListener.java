@@ -207,7 +207,7 @@ public class DiscordCommandListener extends ListenerAdapter {
 
         try {
             // Remove the link from storage
-            linkedPlayersManager.removeLinkByDiscordId(discordUserId); // This also saves to file
+            linkedPlayersManager.removeLinkByDiscordId(discordUserId); // This also records the change in the link journal
 
             // Reset Discord Nickname if feature is enabled
             // This is now handled by clearRolesOnUnlink to ensure it's part of the atomic operations.
@@ -0,0 +1,58 @@
+package net.gabbage.discordRoleSync.discord;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+import net.gabbage.discordRoleSync.service.RoleSyncService;
+import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Picks up role changes made in Discord as they happen, so Discord -> In-game mappings don't have to wait for the
+ * next periodic sync or player join.
+ */
+public class DiscordRoleListener extends ListenerAdapter {
+
+    private final DiscordRoleSync plugin;
+
+    public DiscordRoleListener(DiscordRoleSync plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void onGuildMemberRoleAdd(@NotNull GuildMemberRoleAddEvent event) {
+        handleRoleChange(event.getGuild(), event.getMember(), event.getRoles());
+    }
+
+    @Override
+    public void onGuildMemberRoleRemove(@NotNull GuildMemberRoleRemoveEvent event) {
+        handleRoleChange(event.getGuild(), event.getMember(), event.getRoles());
+    }
+
+    private void handleRoleChange(Guild guild, Member member, List<Role> changedRoles) {
+        if (!guild.getId().equals(plugin.getConfigManager().getDiscordGuildId())) {
+            return;
+        }
+        RoleSyncService roleSyncService = plugin.getRoleSyncService();
+        LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+        if (roleSyncService == null || linkedPlayersManager == null) {
+            return; // Plugin is starting up or shutting down
+        }
+        // Checked before the link lookup: most role changes don't involve a mapped role
+        if (!roleSyncService.isSyncedToIngame(changedRoles)) {
+            return;
+        }
+        UUID mcUUID = linkedPlayersManager.getMcUUID(member.getIdLong());
+        if (mcUUID == null) {
+            return;
+        }
+        roleSyncService.syncDiscordRoleChange(mcUUID, member, changedRoles);
+    }
+}
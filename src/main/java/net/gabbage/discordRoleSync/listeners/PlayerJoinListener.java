@@ -3,6 +3,7 @@ package net.gabbage.discordRoleSync.listeners;
 import net.gabbage.discordRoleSync.DiscordRoleSync;
 import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
 import net.gabbage.discordRoleSync.service.RoleSyncService;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue.Priority;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -38,7 +39,7 @@ public class PlayerJoinListener implements Listener {
                 // Run role synchronization async to avoid blocking login and to match RoleSyncService's async nature for JDA calls
                 final String finalDiscordIdForRoles = discordId; // Capture for async task
                 plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-                    roleSyncService.synchronizeRoles(playerUUID, finalDiscordIdForRoles);
+                    roleSyncService.synchronizeRoles(playerUUID, finalDiscordIdForRoles, Priority.JOIN);
                 });
             } else {
                 // This case should ideally not happen if isMcAccountLinked is true, but good for robustness
@@ -94,6 +94,18 @@ public class ConfigManager {
         return mainConfig.getString("discord.guild-id", "");
     }
 
+    public int getMaxParallelDiscordRequests() {
+        return Math.max(1, mainConfig.getInt("discord.max-parallel-requests", 4));
+    }
+
+    public boolean shouldUseVirtualThreads() {
+        return mainConfig.getBoolean("discord.virtual-threads", false);
+    }
+
+    public int getMaxQueuedDiscordRequests() {
+        return Math.max(1, mainConfig.getInt("discord.max-queued-requests", 5000));
+    }
+
     public String getDiscordInviteLink() {
         return mainConfig.getString("discord.invite-link", "");
     }
@@ -102,6 +114,58 @@ public class ConfigManager {
         return mainConfig.getInt("sync.interval-minutes", 5);
     }
 
+    public double getSyncsPerSecond() {
+        return Math.max(0.0, mainConfig.getDouble("sync.syncs-per-second", 50.0));
+    }
+
+    public int getSyncBurst() {
+        return Math.max(1, mainConfig.getInt("sync.sync-burst", 100));
+    }
+
+    public long getWarmTierIntervalMinutes() {
+        return Math.max(0L, mainConfig.getLong("sync.tiers.warm-interval-minutes", 60L));
+    }
+
+    public long getDormantTierIntervalMinutes() {
+        return Math.max(0L, mainConfig.getLong("sync.tiers.dormant-interval-minutes", 1440L));
+    }
+
+    public long getWarmTierDays() {
+        return Math.max(0L, mainConfig.getLong("sync.tiers.warm-days", 30L));
+    }
+
+    public boolean shouldMatchAllGroups() {
+        return mainConfig.getBoolean("sync.match-all-groups", false);
+    }
+
+    public String getGroupChangeSource() {
+        return mainConfig.getString("sync.group-change-source", "auto");
+    }
+
+    public long getGroupChangeDebounceMillis() {
+        return Math.max(0L, mainConfig.getLong("sync.group-change-debounce-millis", 1000L));
+    }
+
+    public long getSyncTimeoutSeconds() {
+        return Math.max(1L, mainConfig.getLong("sync.timeout-seconds", 120L));
+    }
+
+    public String getStorageBackend() {
+        return mainConfig.getString("storage.backend", "yaml");
+    }
+
+    public int getJournalCompactThreshold() {
+        return Math.max(1, mainConfig.getInt("storage.journal-compact-threshold", 1000));
+    }
+
+    public boolean isBinarySnapshotEnabled() {
+        return mainConfig.getBoolean("storage.binary-snapshot", true);
+    }
+
+    public long getWriteBehindMillis() {
+        return Math.max(0L, mainConfig.getLong("storage.write-behind-millis", 1000L));
+    }
+
     public java.util.List<java.util.Map<?, ?>> getRoleMappings() {
         return mainConfig.getMapList("roles.mappings");
     }
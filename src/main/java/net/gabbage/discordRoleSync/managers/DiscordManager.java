@@ -3,6 +3,7 @@ package net.gabbage.discordRoleSync.managers;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.interactions.commands.build.Commands;
@@ -11,13 +12,25 @@ import net.dv8tion.jda.api.utils.MemberCachePolicy;
 import net.dv8tion.jda.api.exceptions.InsufficientPermissionException;
 import net.dv8tion.jda.api.exceptions.HierarchyException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import net.gabbage.discordRoleSync.DiscordRoleSync;
 import net.gabbage.discordRoleSync.discord.DiscordCommandListener;
+import net.gabbage.discordRoleSync.discord.DiscordRoleListener;
 import net.gabbage.discordRoleSync.util.DiscordTaskQueue;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue.Priority;
 
 
 public class DiscordManager {
 
+    private static final int MEMBER_CHUNK_SIZE = 100; // Most members Discord returns for one gateway request
+    private static final String NICKNAME_OPERATION = "nickname"; // A pending nickname change is replaced by a newer one
+
     private final DiscordRoleSync plugin;
     private JDA jda;
     private final DiscordTaskQueue discordTaskQueue;
@@ -40,7 +53,7 @@ public class DiscordManager {
             jda = JDABuilder.createDefault(botToken)
                     .enableIntents(GatewayIntent.GUILD_MEMBERS, GatewayIntent.GUILD_MESSAGES) // Removed DIRECT_MESSAGES
                     .setMemberCachePolicy(MemberCachePolicy.ALL) // Cache all members for easier role management
-                    .addEventListeners(new DiscordCommandListener(plugin)) // Register command listener
+                    .addEventListeners(new DiscordCommandListener(plugin), new DiscordRoleListener(plugin)) // Register command and role change listeners
                     .build();
             jda.awaitReady(); // Wait for JDA to be fully connected
             plugin.getLogger().info("Successfully connected to Discord as " + jda.getSelfUser().getAsTag());
@@ -152,7 +165,45 @@ public class DiscordManager {
         return discordTaskQueue;
     }
 
-    public void setDiscordNickname(String userId, String nickname, Runnable onCompleteSuccess, Runnable onCompleteFailure) {
+    /**
+     * Looks up members of the configured guild by ID: from the member cache where possible, the rest in gateway
+     * requests of up to 100 members each rather than one REST request per member. Blocks until every request has
+     * completed or timed out, so it must not be called from a JDA thread.
+     *
+     * @return The members found, by ID. Users who are not in the guild, or could not be fetched, are missing.
+     */
+    public Map<Long, Member> prefetchMembers(Collection<Long> userIds) {
+        Map<Long, Member> members = new HashMap<>();
+        String guildId = plugin.getConfigManager().getDiscordGuildId();
+        Guild guild = jda == null || guildId == null || guildId.isEmpty() ? null : jda.getGuildById(guildId);
+        if (guild == null) {
+            return members;
+        }
+        List<Long> uncached = new ArrayList<>();
+        for (long userId : userIds) {
+            Member member = guild.getMemberById(userId);
+            if (member != null) {
+                members.put(userId, member);
+            } else {
+                uncached.add(userId);
+            }
+        }
+        Duration timeout = Duration.ofSeconds(plugin.getConfigManager().getSyncTimeoutSeconds());
+        for (int from = 0; from < uncached.size(); from += MEMBER_CHUNK_SIZE) {
+            List<Long> chunk = uncached.subList(from, Math.min(uncached.size(), from + MEMBER_CHUNK_SIZE));
+            try {
+                for (Member member : guild.retrieveMembersByIds(chunk).setTimeout(timeout).get()) {
+                    members.put(member.getIdLong(), member);
+                }
+            } catch (Exception e) { // Timeout or gateway error; these members are retrieved one by one instead
+                plugin.getLogger().warning("Could not fetch " + chunk.size() + " Discord members in bulk: " + e.getMessage());
+            }
+        }
+        plugin.getLogger().fine("Prefetched " + members.size() + " of " + userIds.size() + " Discord members (" + (userIds.size() - uncached.size()) + " from cache).");
+        return members;
+    }
+
+    public void setDiscordNickname(String userId, String nickname, Priority priority, Runnable onCompleteSuccess, Runnable onCompleteFailure) {
         if (jda == null || !plugin.getConfigManager().shouldSynchronizeDiscordNickname()) {
             if (onCompleteFailure != null) onCompleteFailure.run();
             return;
@@ -170,40 +221,66 @@ public class DiscordManager {
             return;
         }
 
-        discordTaskQueue.submit(() -> {
+        submitNicknameUpdate(guild, userId, () -> guild.retrieveMemberById(userId).complete(true), nickname, priority, onCompleteSuccess, onCompleteFailure);
+    }
+
+    /**
+     * Sets the nickname of a member that was already retrieved, e.g. by a role sync, without requesting it again.
+     */
+    public void setDiscordNickname(Member member, String nickname, Priority priority, Runnable onCompleteSuccess, Runnable onCompleteFailure) {
+        if (jda == null || !plugin.getConfigManager().shouldSynchronizeDiscordNickname()) {
+            if (onCompleteFailure != null) onCompleteFailure.run();
+            return;
+        }
+        submitNicknameUpdate(member.getGuild(), member.getId(), () -> member, nickname, priority, onCompleteSuccess, onCompleteFailure);
+    }
+
+    private void submitNicknameUpdate(Guild guild, String userId, Callable<Member> memberLookup, String nickname, Priority priority, Runnable onCompleteSuccess, Runnable onCompleteFailure) {
+        String guildId = guild.getId();
+        CompletableFuture<Boolean> updated = discordTaskQueue.submit(userId, NICKNAME_OPERATION, priority, () -> {
             try {
-                net.dv8tion.jda.api.entities.Member member = guild.retrieveMemberById(userId).complete(true);
+                Member member = memberLookup.call();
                 if (member == null) { // Should not happen with complete(true) as it throws on failure
                     plugin.getLogger().warning("Failed to retrieve member " + userId + " in guild " + guildId + " to set nickname (member was null post-complete).");
-                    if (onCompleteFailure != null) onCompleteFailure.run();
-                    return;
+                    return false;
                 }
 
                 String currentNickname = member.getNickname();
                 if (nickname.equals(currentNickname)) {
                     plugin.getLogger().fine("Discord nickname for " + member.getUser().getAsTag() + " is already '" + nickname + "'. No update needed.");
-                    if (onCompleteSuccess != null) onCompleteSuccess.run();
-                    return;
+                    return true;
                 }
 
                 member.modifyNickname(nickname).reason("Linked to Minecraft account: " + nickname).complete(true);
                 plugin.getLogger().info("Set nickname for " + member.getUser().getAsTag() + " to '" + nickname + "' in guild " + guild.getName());
-                if (onCompleteSuccess != null) onCompleteSuccess.run();
+                return true;
 
             } catch (InsufficientPermissionException e) {
                 plugin.getLogger().warning("Bot lacks 'Manage Nicknames' permission in guild " + guild.getName() + " to set nickname for user ID " + userId + ".");
-                if (onCompleteFailure != null) onCompleteFailure.run();
+                return false;
             } catch (HierarchyException e) {
                 plugin.getLogger().warning("Cannot set nickname for user ID " + userId + " in guild " + guild.getName() + " due to role hierarchy (bot's role is not high enough).");
-                if (onCompleteFailure != null) onCompleteFailure.run();
+                return false;
             } catch (Exception e) { // Catches other JDA exceptions like TimeoutException, RateLimitException from .complete(true)
                 plugin.getLogger().warning("Failed to set nickname for user ID " + userId + " in guild " + guildId + ": " + e.getMessage());
-                if (onCompleteFailure != null) onCompleteFailure.run();
+                return false;
             }
         });
+        runWhenDone(updated, onCompleteSuccess, onCompleteFailure);
+    }
+
+    /**
+     * Runs the callback for the outcome once the nickname task has run, was replaced by a newer one that ran, or was
+     * rejected by the queue.
+     */
+    private static void runWhenDone(CompletableFuture<Boolean> updated, Runnable onCompleteSuccess, Runnable onCompleteFailure) {
+        updated.whenComplete((success, failure) -> {
+            Runnable callback = Boolean.TRUE.equals(success) ? onCompleteSuccess : onCompleteFailure;
+            if (callback != null) callback.run();
+        });
     }
 
-    public void resetDiscordNickname(String userId, Runnable onCompleteSuccess, Runnable onCompleteFailure) {
+    public void resetDiscordNickname(String userId, Priority priority, Runnable onCompleteSuccess, Runnable onCompleteFailure) {
         if (jda == null || !plugin.getConfigManager().shouldSynchronizeDiscordNickname()) {
             if (onCompleteFailure != null) onCompleteFailure.run(); // Or success if "not enabled" is not a failure
             return;
@@ -221,34 +298,34 @@ public class DiscordManager {
             return;
         }
 
-        discordTaskQueue.submit(() -> {
+        CompletableFuture<Boolean> updated = discordTaskQueue.submit(userId, NICKNAME_OPERATION, priority, () -> {
             try {
                 net.dv8tion.jda.api.entities.Member member = guild.retrieveMemberById(userId).complete(true);
                 if (member == null) { // Should not happen with complete(true)
                     plugin.getLogger().warning("Failed to retrieve member " + userId + " in guild " + guildId + " to reset nickname (member was null post-complete).");
-                    if (onCompleteFailure != null) onCompleteFailure.run();
-                    return;
+                    return false;
                 }
 
                 if (member.getNickname() != null && !member.getNickname().isEmpty()) {
                     member.modifyNickname(null).reason("Unlinked from Minecraft account").complete(true);
                     plugin.getLogger().info("Reset nickname for " + member.getUser().getAsTag() + " in guild " + guild.getName());
-                    if (onCompleteSuccess != null) onCompleteSuccess.run();
+                    return true;
                 } else {
                     plugin.getLogger().fine("Nickname for " + member.getUser().getAsTag() + " in guild " + guild.getName() + " was already null or empty. No reset action needed.");
-                    if (onCompleteSuccess != null) onCompleteSuccess.run();
+                    return true;
                 }
             } catch (InsufficientPermissionException e) {
                 plugin.getLogger().warning("Bot lacks 'Manage Nicknames' permission in guild " + guild.getName() + " to reset nickname for user ID " + userId + ".");
-                if (onCompleteFailure != null) onCompleteFailure.run();
+                return false;
             } catch (HierarchyException e) {
                 plugin.getLogger().warning("Cannot reset nickname for user ID " + userId + " in guild " + guild.getName() + " due to role hierarchy (bot's role is not high enough).");
-                if (onCompleteFailure != null) onCompleteFailure.run();
+                return false;
             } catch (Exception e) { // Catches other JDA exceptions
                 plugin.getLogger().warning("Failed to reset nickname for user ID " + userId + " in guild " + guildId + ": " + e.getMessage());
-                if (onCompleteFailure != null) onCompleteFailure.run();
+                return false;
             }
         });
+        runWhenDone(updated, onCompleteSuccess, onCompleteFailure);
     }
 
     public void sendDirectMessage(String userId, String message) {
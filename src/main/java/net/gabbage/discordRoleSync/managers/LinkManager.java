@@ -3,6 +3,7 @@ package net.gabbage.discordRoleSync.managers;
 import net.gabbage.discordRoleSync.DiscordRoleSync;
 import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
 import net.gabbage.discordRoleSync.util.LinkRequest;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue.Priority;
 import org.bukkit.entity.Player;
 import org.bukkit.OfflinePlayer;
 
@@ -64,7 +65,7 @@ public class LinkManager {
         // This is now handled by synchronizeRoles to ensure it's part of the atomic operations.
         // if (plugin.getConfigManager().shouldSynchronizeDiscordNickname()) { ... }
 
-        plugin.getRoleSyncService().synchronizeRoles(request.getMinecraftPlayerUUID(), request.getDiscordUserId());
+        plugin.getRoleSyncService().synchronizeRoles(request.getMinecraftPlayerUUID(), request.getDiscordUserId(), Priority.LINK);
         plugin.getLogger().info("Player " + minecraftPlayerUUID + " successfully linked with Discord user " + request.getFullDiscordName() + " (" + request.getDiscordUserId() + "). Initial role sync triggered.");
         return true;
     }
@@ -184,7 +185,7 @@ public class LinkManager {
         // if (plugin.getConfigManager().shouldSynchronizeDiscordNickname()) { ... }
 
         // Trigger role synchronization
-        plugin.getRoleSyncService().synchronizeRoles(mcUUID, discordId);
+        plugin.getRoleSyncService().synchronizeRoles(mcUUID, discordId, Priority.LINK);
 
         plugin.getLogger().info("Manually linked Minecraft player " + playerName + " (UUID: " + mcUUID + ") with Discord ID " + discordId + ". Post-link actions (nickname, roles) triggered.");
         return true;
@@ -0,0 +1,15 @@
+package net.gabbage.discordRoleSync.permissions;
+
+/**
+ * Notices in-game group changes between periodic syncs and reports them to
+ * {@link net.gabbage.discordRoleSync.service.RoleSyncService#requestIngameSync(java.util.UUID)}.
+ * Selected by {@code sync.group-change-source}.
+ */
+public interface GroupChangeSource {
+
+    String getName();
+
+    void register();
+
+    void unregister();
+}
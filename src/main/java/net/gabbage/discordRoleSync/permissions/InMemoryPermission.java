@@ -0,0 +1,220 @@
+package net.gabbage.discordRoleSync.permissions;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+import net.gabbage.discordRoleSync.service.RoleSyncService;
+import net.milkbowl.vault.permission.Permission;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory Vault permission provider for test and benchmark servers ({@code sync.group-change-source: memory}).
+ * Stands in for a real permission plugin: groups and permissions live only as long as the server runs, worlds are
+ * ignored, and the first group a player was given is their primary group ("default" if they have none).
+ * Every group change is reported as soon as it is made, like LuckPerms' events.
+ */
+public class InMemoryPermission extends Permission implements GroupChangeSource {
+
+    private static final String DEFAULT_GROUP = "default";
+
+    private final Map<UUID, Set<String>> playerGroups = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<String>> playerPermissions = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> groupPermissions = new ConcurrentHashMap<>();
+    private volatile boolean notifying;
+
+    public InMemoryPermission(DiscordRoleSync plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public String getName() {
+        return "In-memory";
+    }
+
+    // GroupChangeSource
+
+    @Override
+    public void register() {
+        notifying = true;
+    }
+
+    @Override
+    public void unregister() {
+        notifying = false;
+    }
+
+    private void groupsChanged(UUID mcUUID) {
+        RoleSyncService roleSyncService = ((DiscordRoleSync) plugin).getRoleSyncService();
+        if (notifying && roleSyncService != null) {
+            roleSyncService.requestIngameSync(mcUUID);
+        }
+    }
+
+    // Permission
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public boolean hasSuperPermsCompat() {
+        return false;
+    }
+
+    @Override
+    public boolean hasGroupSupport() {
+        return true;
+    }
+
+    @Override
+    public String getPrimaryGroup(String world, OfflinePlayer player) {
+        Set<String> groups = playerGroups.get(player.getUniqueId());
+        if (groups != null) {
+            synchronized (groups) {
+                if (!groups.isEmpty()) {
+                    return groups.iterator().next();
+                }
+            }
+        }
+        return DEFAULT_GROUP;
+    }
+
+    @Override
+    public String[] getPlayerGroups(String world, OfflinePlayer player) {
+        Set<String> groups = playerGroups.get(player.getUniqueId());
+        if (groups == null) {
+            return new String[] {DEFAULT_GROUP};
+        }
+        synchronized (groups) {
+            return groups.isEmpty() ? new String[] {DEFAULT_GROUP} : groups.toArray(new String[0]);
+        }
+    }
+
+    @Override
+    public boolean playerInGroup(String world, OfflinePlayer player, String group) {
+        for (String playerGroup : getPlayerGroups(world, player)) {
+            if (playerGroup.equalsIgnoreCase(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean playerAddGroup(String world, OfflinePlayer player, String group) {
+        Set<String> groups = playerGroups.computeIfAbsent(player.getUniqueId(), key -> new LinkedHashSet<>());
+        boolean added;
+        synchronized (groups) {
+            added = groups.add(group);
+        }
+        if (added) {
+            groupsChanged(player.getUniqueId());
+        }
+        return added;
+    }
+
+    @Override
+    public boolean playerRemoveGroup(String world, OfflinePlayer player, String group) {
+        Set<String> groups = playerGroups.get(player.getUniqueId());
+        if (groups == null) {
+            return false;
+        }
+        boolean removed;
+        synchronized (groups) {
+            removed = groups.remove(group);
+        }
+        if (removed) {
+            groupsChanged(player.getUniqueId());
+        }
+        return removed;
+    }
+
+    @Override
+    public String[] getGroups() {
+        Set<String> groups = new LinkedHashSet<>();
+        groups.add(DEFAULT_GROUP);
+        groups.addAll(groupPermissions.keySet());
+        for (Set<String> memberships : playerGroups.values()) {
+            synchronized (memberships) {
+                groups.addAll(memberships);
+            }
+        }
+        return groups.toArray(new String[0]);
+    }
+
+    @Override
+    public boolean playerHas(String world, String player, String permission) {
+        OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(player);
+        Set<String> permissions = playerPermissions.get(offlinePlayer.getUniqueId());
+        if (permissions != null && permissions.contains(permission)) {
+            return true;
+        }
+        for (String group : getPlayerGroups(world, offlinePlayer)) {
+            if (groupHas(world, group, permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean playerAdd(String world, String player, String permission) {
+        return playerPermissions.computeIfAbsent(Bukkit.getOfflinePlayer(player).getUniqueId(), key -> ConcurrentHashMap.newKeySet()).add(permission);
+    }
+
+    @Override
+    public boolean playerRemove(String world, String player, String permission) {
+        Set<String> permissions = playerPermissions.get(Bukkit.getOfflinePlayer(player).getUniqueId());
+        return permissions != null && permissions.remove(permission);
+    }
+
+    @Override
+    public boolean groupHas(String world, String group, String permission) {
+        Set<String> permissions = groupPermissions.get(group);
+        return permissions != null && permissions.contains(permission);
+    }
+
+    @Override
+    public boolean groupAdd(String world, String group, String permission) {
+        return groupPermissions.computeIfAbsent(group, key -> ConcurrentHashMap.newKeySet()).add(permission);
+    }
+
+    @Override
+    public boolean groupRemove(String world, String group, String permission) {
+        Set<String> permissions = groupPermissions.get(group);
+        return permissions != null && permissions.remove(permission);
+    }
+
+    // Name based variants, deprecated in Vault
+
+    @Override
+    public boolean playerInGroup(String world, String player, String group) {
+        return playerInGroup(world, Bukkit.getOfflinePlayer(player), group);
+    }
+
+    @Override
+    public boolean playerAddGroup(String world, String player, String group) {
+        return playerAddGroup(world, Bukkit.getOfflinePlayer(player), group);
+    }
+
+    @Override
+    public boolean playerRemoveGroup(String world, String player, String group) {
+        return playerRemoveGroup(world, Bukkit.getOfflinePlayer(player), group);
+    }
+
+    @Override
+    public String[] getPlayerGroups(String world, String player) {
+        return getPlayerGroups(world, Bukkit.getOfflinePlayer(player));
+    }
+
+    @Override
+    public String getPrimaryGroup(String world, String player) {
+        return getPrimaryGroup(world, Bukkit.getOfflinePlayer(player));
+    }
+}
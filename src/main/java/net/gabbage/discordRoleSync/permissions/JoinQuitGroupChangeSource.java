@@ -0,0 +1,90 @@
+package net.gabbage.discordRoleSync.permissions;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+import net.gabbage.discordRoleSync.service.PermissionSnapshot;
+import net.gabbage.discordRoleSync.service.RoleSyncService;
+import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
+import net.milkbowl.vault.permission.Permission;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fallback for permission plugins without change events: remembers a linked player's groups when they join and
+ * compares them when they quit, so changes made during the session don't wait for the periodic sync. Changes made
+ * while the player is offline are picked up by the sync on join.
+ */
+public class JoinQuitGroupChangeSource implements GroupChangeSource, Listener {
+
+    private final DiscordRoleSync plugin;
+    private final Map<UUID, Set<String>> groupsAtJoin = new ConcurrentHashMap<>();
+
+    public JoinQuitGroupChangeSource(DiscordRoleSync plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public String getName() {
+        return "join/quit";
+    }
+
+    @Override
+    public void register() {
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        for (Player player : plugin.getServer().getOnlinePlayers()) { // Players already online when (re)loaded
+            rememberGroups(player);
+        }
+    }
+
+    @Override
+    public void unregister() {
+        HandlerList.unregisterAll(this);
+        groupsAtJoin.clear();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        rememberGroups(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        Player player = event.getPlayer();
+        Set<String> joinGroups = groupsAtJoin.remove(player.getUniqueId());
+        Set<String> quitGroups = captureGroups(player);
+        if (joinGroups != null && quitGroups != null && !joinGroups.equals(quitGroups)) {
+            RoleSyncService roleSyncService = plugin.getRoleSyncService();
+            if (roleSyncService != null) {
+                roleSyncService.requestIngameSync(player.getUniqueId());
+            }
+        }
+    }
+
+    private void rememberGroups(Player player) {
+        LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+        if (linkedPlayersManager == null || !linkedPlayersManager.isMcAccountLinked(player.getUniqueId())) {
+            return;
+        }
+        Set<String> groups = captureGroups(player);
+        if (groups != null) {
+            groupsAtJoin.put(player.getUniqueId(), groups);
+        }
+    }
+
+    private Set<String> captureGroups(Player player) {
+        Permission vaultPerms = DiscordRoleSync.getVaultPermissions();
+        if (vaultPerms == null) {
+            return null;
+        }
+        return PermissionSnapshot.capture(vaultPerms, player, plugin.getConfigManager().shouldMatchAllGroups()).getGroupKeys();
+    }
+}
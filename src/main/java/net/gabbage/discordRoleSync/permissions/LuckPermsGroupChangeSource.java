@@ -0,0 +1,80 @@
+package net.gabbage.discordRoleSync.permissions;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+import net.gabbage.discordRoleSync.service.RoleSyncService;
+import net.luckperms.api.LuckPermsProvider;
+import net.luckperms.api.event.EventBus;
+import net.luckperms.api.event.EventSubscription;
+import net.luckperms.api.event.node.NodeMutateEvent;
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeType;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Listens to LuckPerms changes of a user's group memberships (inheritance nodes). Only loaded when LuckPerms is
+ * installed, as this class links against its API.
+ */
+public class LuckPermsGroupChangeSource implements GroupChangeSource {
+
+    private final DiscordRoleSync plugin;
+    private final List<EventSubscription<?>> subscriptions = new ArrayList<>();
+
+    public LuckPermsGroupChangeSource(DiscordRoleSync plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public String getName() {
+        return "LuckPerms";
+    }
+
+    /**
+     * @throws IllegalStateException If the LuckPerms API is not loaded.
+     */
+    @Override
+    public void register() {
+        EventBus eventBus = LuckPermsProvider.get().getEventBus();
+        // Covers node add, remove and clear. Permission, meta and prefix nodes change no groups, and data being loaded
+        // or recalculated (on every login, and for our own offline Vault lookups) changes no nodes, so neither syncs
+        subscriptions.add(eventBus.subscribe(plugin, NodeMutateEvent.class, event -> {
+            if (event.isUser() && inheritanceChanged(event)) {
+                onGroupsChanged(((User) event.getTarget()).getUniqueId());
+            }
+        }));
+    }
+
+    @Override
+    public void unregister() {
+        for (EventSubscription<?> subscription : subscriptions) {
+            subscription.close();
+        }
+        subscriptions.clear();
+    }
+
+    private static boolean inheritanceChanged(NodeMutateEvent event) {
+        return !inheritanceNodes(event.getDataBefore()).equals(inheritanceNodes(event.getDataAfter()));
+    }
+
+    private static Set<Node> inheritanceNodes(Set<Node> nodes) {
+        Set<Node> inheritanceNodes = new HashSet<>();
+        for (Node node : nodes) {
+            if (NodeType.INHERITANCE.matches(node)) {
+                inheritanceNodes.add(node);
+            }
+        }
+        return inheritanceNodes;
+    }
+
+    private void onGroupsChanged(UUID mcUUID) {
+        RoleSyncService roleSyncService = plugin.getRoleSyncService();
+        if (roleSyncService != null) {
+            roleSyncService.requestIngameSync(mcUUID);
+        }
+    }
+}
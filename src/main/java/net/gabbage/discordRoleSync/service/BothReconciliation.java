@@ -0,0 +1,82 @@
+package net.gabbage.discordRoleSync.service;
+
+/**
+ * Decides, for each BOTH mapping whose in-game group and Discord role disagree, which side changed since the last
+ * successful sync, so the change is applied in that one direction only. Without this a player with the group but
+ * not the role would get the role from In-game -> Discord and lose the group from Discord -> In-game in the same
+ * sync, and flip back and forth from then on.
+ * <p>
+ * The state both sides agreed on after the last successful sync is kept in
+ * {@link net.gabbage.discordRoleSync.storage.LinkMetadata#agreedState()}: the high 16 bits are the table's
+ * {@link MappingTable#getBothLayoutTag()}, the low {@value #TRACKED_MAPPINGS} bits whether each BOTH mapping (by
+ * ordinal) was held. If it is unknown, was recorded for different mappings, or the mapping is beyond the tracked
+ * ones, the in-game side wins, matching the In-game -> Discord first order of a sync.
+ */
+final class BothReconciliation {
+
+    static final int TRACKED_MAPPINGS = 48;
+
+    private final long[] discordWins; // BOTH entries to apply Discord -> In-game; the rest apply In-game -> Discord
+    private final long[] disagreements; // BOTH entries whose group and role differed
+    private final long[] toIngameCandidates; // Entries the Discord -> In-game pass may act on
+    private final long agreedState; // Agreed state once this sync has been applied
+
+    private BothReconciliation(long[] discordWins, long[] disagreements, long[] toIngameCandidates, long agreedState) {
+        this.discordWins = discordWins;
+        this.disagreements = disagreements;
+        this.toIngameCandidates = toIngameCandidates;
+        this.agreedState = agreedState;
+    }
+
+    static BothReconciliation reconcile(MappingTable table, long[] groupBits, long[] roleBits, long previousAgreedState) {
+        long[] discordWins = new long[groupBits.length];
+        long[] disagreements = new long[groupBits.length];
+        boolean known = previousAgreedState != 0L && (previousAgreedState >>> TRACKED_MAPPINGS) == table.getBothLayoutTag();
+        long agreed = 0L;
+        int ordinal = 0;
+        for (MappingTable.Entry entry : table.getBothEntries()) {
+            int index = entry.index();
+            boolean hasGroup = MappingTable.isBitSet(groupBits, index);
+            boolean hasRole = MappingTable.isBitSet(roleBits, index);
+            boolean result = hasGroup;
+            if (hasGroup != hasRole) {
+                disagreements[index >>> 6] |= 1L << index;
+                boolean tracked = known && ordinal < TRACKED_MAPPINGS;
+                if (tracked && ((previousAgreedState >>> ordinal) & 1L) == (hasGroup ? 1L : 0L)) {
+                    // The group is as both sides left it, so the role is what changed
+                    discordWins[index >>> 6] |= 1L << index;
+                    result = hasRole;
+                }
+            }
+            if (result && ordinal < TRACKED_MAPPINGS) {
+                agreed |= 1L << ordinal;
+            }
+            ordinal++;
+        }
+
+        long[] toIngameEntryBits = table.getToIngameEntryBits();
+        long[] bothEntryBits = table.getBothEntryBits();
+        long[] toIngameCandidates = new long[groupBits.length];
+        for (int i = 0; i < toIngameCandidates.length; i++) {
+            toIngameCandidates[i] = (toIngameEntryBits[i] & ~bothEntryBits[i]) | discordWins[i];
+        }
+        return new BothReconciliation(discordWins, disagreements, toIngameCandidates,
+                ((long) table.getBothLayoutTag() << TRACKED_MAPPINGS) | agreed);
+    }
+
+    long[] getDiscordWins() {
+        return discordWins;
+    }
+
+    long[] getDisagreements() {
+        return disagreements;
+    }
+
+    long[] getToIngameCandidates() {
+        return toIngameCandidates;
+    }
+
+    long getAgreedState() {
+        return agreedState;
+    }
+}
@@ -0,0 +1,313 @@
+package net.gabbage.discordRoleSync.service;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, indexed form of the configured role mappings, built once by
+ * {@link RoleSyncService#loadAndParseRoleMappings()} and swapped in as a whole on reload.
+ * Mappings are indexed by lowercase in-game group and by Discord role ID, so evaluating a player is a couple of
+ * hash lookups instead of string comparisons against every mapping.
+ * <p>
+ * Group and role membership are evaluated as bitsets ({@code long[]} words). Entry bitsets have one bit per entry
+ * (by {@link Entry#index()}); Discord role bitsets have one bit per role in {@link #getToDiscordRoleIds()}. Diffing a
+ * player against the table is then a few word-wide AND/XOR operations regardless of the number of mappings.
+ */
+public final class MappingTable {
+
+    public static final MappingTable EMPTY = new MappingTable(List.of());
+
+    /**
+     * A compiled mapping. The Discord role is only kept by ID; see {@link #resolveRole(Guild, long)}.
+     */
+    public record Entry(int index, RoleSyncService.RoleMapping mapping, String groupKey, long discordRoleId, SyncDirection direction) {}
+
+    private final long contentHash; // Stable across restarts for the same mappings
+    private final List<Entry> entries;
+    private final List<RoleSyncService.RoleMapping> mappings;
+    private final List<Entry> toIngameEntries;
+    private final long[] toDiscordRoleIds; // Distinct role IDs with at least one In-game -> Discord mapping
+    private final Map<String, long[]> entryBitsByGroup;
+    private final Map<Long, long[]> entryBitsByRoleId;
+    private final Map<Long, Integer> toDiscordRoleSlots; // Role ID -> bit in Discord role bitsets
+    private final long[] toIngameEntryBits;
+    private final long[] toDiscordEntryBits;
+    private final long[] bothEntryBits;
+    private final List<Entry> bothEntries;
+    private final int bothLayoutTag; // Non-zero 16-bit hash of the BOTH mappings, in order
+
+    private MappingTable(List<Entry> entries) {
+        this.entries = List.copyOf(entries);
+        List<RoleSyncService.RoleMapping> mappings = new ArrayList<>(entries.size());
+        List<Entry> toIngameEntries = new ArrayList<>();
+        Set<Long> toDiscordRoleIds = new LinkedHashSet<>();
+        long contentHash = 0xcbf29ce484222325L;
+        for (Entry entry : entries) {
+            contentHash = (contentHash ^ entry.groupKey().hashCode()) * 0x100000001b3L;
+            contentHash = (contentHash ^ entry.discordRoleId()) * 0x100000001b3L;
+            contentHash = (contentHash ^ entry.direction().ordinal()) * 0x100000001b3L;
+            mappings.add(entry.mapping());
+            if (entry.direction().syncsToIngame()) {
+                toIngameEntries.add(entry);
+            }
+            if (entry.direction().syncsToDiscord()) {
+                toDiscordRoleIds.add(entry.discordRoleId());
+            }
+        }
+        this.contentHash = contentHash;
+        this.mappings = Collections.unmodifiableList(mappings);
+        this.toIngameEntries = List.copyOf(toIngameEntries);
+        this.toDiscordRoleIds = toDiscordRoleIds.stream().mapToLong(Long::longValue).toArray();
+
+        Map<Long, Integer> toDiscordRoleSlots = new HashMap<>();
+        for (int slot = 0; slot < this.toDiscordRoleIds.length; slot++) {
+            toDiscordRoleSlots.put(this.toDiscordRoleIds[slot], slot);
+        }
+        int entryWords = words(this.entries.size());
+        Map<String, long[]> entryBitsByGroup = new HashMap<>();
+        Map<Long, long[]> entryBitsByRoleId = new HashMap<>();
+        long[] toIngameEntryBits = new long[entryWords];
+        long[] toDiscordEntryBits = new long[entryWords];
+        long[] bothEntryBits = new long[entryWords];
+        List<Entry> bothEntries = new ArrayList<>();
+        long bothLayoutHash = 0xcbf29ce484222325L;
+        for (Entry entry : this.entries) {
+            setBit(entryBitsByGroup.computeIfAbsent(entry.groupKey(), key -> new long[entryWords]), entry.index());
+            setBit(entryBitsByRoleId.computeIfAbsent(entry.discordRoleId(), key -> new long[entryWords]), entry.index());
+            if (entry.direction().syncsToIngame()) {
+                setBit(toIngameEntryBits, entry.index());
+            }
+            if (entry.direction() == SyncDirection.BOTH) {
+                setBit(bothEntryBits, entry.index());
+                bothEntries.add(entry);
+                bothLayoutHash = (bothLayoutHash ^ entry.groupKey().hashCode()) * 0x100000001b3L;
+                bothLayoutHash = (bothLayoutHash ^ entry.discordRoleId()) * 0x100000001b3L;
+            }
+            if (entry.direction().syncsToDiscord()) {
+                setBit(toDiscordEntryBits, entry.index());
+            }
+        }
+        this.toDiscordRoleSlots = toDiscordRoleSlots;
+        this.entryBitsByGroup = entryBitsByGroup;
+        this.entryBitsByRoleId = entryBitsByRoleId;
+        this.toIngameEntryBits = toIngameEntryBits;
+        this.toDiscordEntryBits = toDiscordEntryBits;
+        this.bothEntryBits = bothEntryBits;
+        this.bothEntries = List.copyOf(bothEntries);
+        int bothLayoutTag = (int) (bothLayoutHash ^ (bothLayoutHash >>> 16) ^ (bothLayoutHash >>> 32) ^ (bothLayoutHash >>> 48)) & 0xFFFF;
+        this.bothLayoutTag = bothLayoutTag != 0 ? bothLayoutTag : 1;
+    }
+
+    /**
+     * Compiles validated mappings. Discord role IDs must already be known to be numeric.
+     */
+    public static MappingTable compile(List<RoleSyncService.RoleMapping> mappings) {
+        if (mappings.isEmpty()) {
+            return EMPTY;
+        }
+        List<Entry> entries = new ArrayList<>(mappings.size());
+        for (RoleSyncService.RoleMapping mapping : mappings) {
+            entries.add(new Entry(entries.size(), mapping, groupKey(mapping.ingameGroup()), Long.parseLong(mapping.discordRoleId()),
+                    SyncDirection.valueOf(mapping.syncDirection())));
+        }
+        return new MappingTable(entries);
+    }
+
+    public static String groupKey(String group) {
+        return group.toLowerCase(Locale.ROOT);
+    }
+
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public List<RoleSyncService.RoleMapping> getMappings() {
+        return mappings;
+    }
+
+    public List<Entry> getToIngameEntries() {
+        return toIngameEntries;
+    }
+
+    /**
+     * @return Distinct Discord role IDs targeted by In-game -> Discord mappings. Do not modify.
+     */
+    public long[] getToDiscordRoleIds() {
+        return toDiscordRoleIds;
+    }
+
+    /**
+     * @return Entry bitset of the mappings whose in-game group is one of groupKeys (lowercase).
+     */
+    public long[] entryBitsForGroups(Collection<String> groupKeys) {
+        long[] bits = new long[words(entries.size())];
+        for (String groupKey : groupKeys) {
+            or(bits, entryBitsByGroup.get(groupKey));
+        }
+        return bits;
+    }
+
+    /**
+     * @return Entry bitset of the mappings whose Discord role the member holds.
+     */
+    public long[] entryBitsForMemberRoles(Member discordMember) {
+        return entryBitsForRoles(discordMember.getRoles());
+    }
+
+    /**
+     * @return Entry bitset of the mappings targeting any of the roles.
+     */
+    public long[] entryBitsForRoles(Collection<Role> roles) {
+        long[] bits = new long[words(entries.size())];
+        for (Role role : roles) {
+            or(bits, entryBitsByRoleId.get(role.getIdLong()));
+        }
+        return bits;
+    }
+
+    /**
+     * @return Entry bitset of the mappings that sync Discord -> In-game. Do not modify.
+     */
+    public long[] getToIngameEntryBits() {
+        return toIngameEntryBits;
+    }
+
+    /**
+     * @return Entry bitset of the mappings that sync In-game -> Discord. Do not modify.
+     */
+    public long[] getToDiscordEntryBits() {
+        return toDiscordEntryBits;
+    }
+
+    /**
+     * @return Entry bitset of the BOTH mappings. Do not modify.
+     */
+    public long[] getBothEntryBits() {
+        return bothEntryBits;
+    }
+
+    /**
+     * @return The BOTH mappings in table order; a mapping's position in this list is its BOTH ordinal.
+     */
+    public List<Entry> getBothEntries() {
+        return bothEntries;
+    }
+
+    /**
+     * @return A non-zero 16-bit hash of the BOTH mappings and their order, identifying what BOTH ordinals refer to.
+     */
+    public int getBothLayoutTag() {
+        return bothLayoutTag;
+    }
+
+    /**
+     * @return Discord role bitset of the roles targeted by the given entries that sync In-game -> Discord.
+     */
+    public long[] toDiscordRoleBitsForEntries(long[] entryBits) {
+        long[] bits = new long[words(toDiscordRoleIds.length)];
+        for (int index = nextSetBit(entryBits, 0); index >= 0; index = nextSetBit(entryBits, index + 1)) {
+            Integer slot = toDiscordRoleSlots.get(entries.get(index).discordRoleId());
+            if (slot != null) {
+                setBit(bits, slot);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return Discord role bitset of the In-game -> Discord roles the member currently holds.
+     */
+    public long[] heldToDiscordRoleBits(Member discordMember) {
+        long[] bits = new long[words(toDiscordRoleIds.length)];
+        for (Role role : discordMember.getRoles()) {
+            Integer slot = toDiscordRoleSlots.get(role.getIdLong());
+            if (slot != null) {
+                setBit(bits, slot);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return The index of the first set bit at or after fromIndex, or -1 if there is none.
+     */
+    public static int nextSetBit(long[] bits, int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long current = bits[word] & (-1L << fromIndex);
+        while (true) {
+            if (current != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(current);
+            }
+            if (++word == bits.length) {
+                return -1;
+            }
+            current = bits[word];
+        }
+    }
+
+    public static boolean isEmpty(long[] bits) {
+        for (long word : bits) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isBitSet(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void setBit(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static void or(long[] target, long[] bits) {
+        if (bits == null) {
+            return;
+        }
+        for (int i = 0; i < target.length; i++) {
+            target[i] |= bits[i];
+        }
+    }
+
+    private static int words(int bitCount) {
+        return (bitCount + 63) >>> 6;
+    }
+
+    /**
+     * Looks the role up in the guild's role cache on every call rather than keeping the role from when the table was
+     * compiled, so a role deleted since then is reported as missing instead of being treated as held by nobody.
+     *
+     * @return The role, or null if the guild no longer has it.
+     */
+    public Role resolveRole(Guild guild, long discordRoleId) {
+        return guild.getRoleById(discordRoleId);
+    }
+}
@@ -0,0 +1,81 @@
+package net.gabbage.discordRoleSync.service;
+
+import net.milkbowl.vault.permission.Permission;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A player's groups as seen by Vault at one point in time. Captured once per sync so every mapping is evaluated
+ * against the same state, and Vault (which may hit permission plugin storage for offline players) is queried
+ * once per player rather than once per mapping.
+ */
+public final class PermissionSnapshot {
+
+    private final String primaryGroup; // May be null
+    private final List<String> groups; // All groups reported by Vault, empty unless captured with allGroups
+    private final Set<String> groupKeys; // Lowercase groups mappings are evaluated against
+
+    private PermissionSnapshot(String primaryGroup, List<String> groups) {
+        this.primaryGroup = primaryGroup;
+        Set<String> groupKeys = new LinkedHashSet<>();
+        if (primaryGroup != null) {
+            groupKeys.add(MappingTable.groupKey(primaryGroup));
+        }
+        for (String group : groups) {
+            groupKeys.add(MappingTable.groupKey(group));
+        }
+        this.groupKeys = Collections.unmodifiableSet(groupKeys);
+        this.groups = List.copyOf(groups);
+    }
+
+    /**
+     * Queries Vault for the player's groups, in the world the player is in if online.
+     * @param allGroups Whether mappings match any of the player's groups ({@code sync.match-all-groups}) rather
+     *                  than only the primary group. The full group list is only queried in that case.
+     */
+    public static PermissionSnapshot capture(Permission vaultPerms, OfflinePlayer offlinePlayer, boolean allGroups) {
+        Player onlinePlayer = offlinePlayer.isOnline() ? offlinePlayer.getPlayer() : null;
+        String worldName = (onlinePlayer != null && onlinePlayer.getWorld() != null) ? onlinePlayer.getWorld().getName() : null;
+        String primaryGroup = vaultPerms.getPrimaryGroup(worldName, offlinePlayer);
+        String[] playerGroups = allGroups ? vaultPerms.getPlayerGroups(worldName, offlinePlayer) : null;
+        List<String> groups = new ArrayList<>();
+        if (playerGroups != null) {
+            for (String group : playerGroups) {
+                if (group != null) {
+                    groups.add(group);
+                }
+            }
+        }
+        return new PermissionSnapshot(primaryGroup, groups);
+    }
+
+    public String getPrimaryGroup() {
+        return primaryGroup;
+    }
+
+    /**
+     * @return Every group the player is in as reported by Vault, in Vault's order. Empty if only the primary group
+     * was captured.
+     */
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return Lowercase keys of the groups mappings are evaluated against: the primary group, plus all other groups
+     * if captured with allGroups.
+     */
+    public Set<String> getGroupKeys() {
+        return groupKeys;
+    }
+
+    public boolean isInGroup(MappingTable.Entry entry) {
+        return groupKeys.contains(entry.groupKey());
+    }
+}
@@ -3,39 +3,104 @@ package net.gabbage.discordRoleSync.service;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
-import net.dv8tion.jda.api.exceptions.HierarchyException;
-import net.dv8tion.jda.api.exceptions.InsufficientPermissionException;
 import net.gabbage.discordRoleSync.DiscordRoleSync;
 import net.gabbage.discordRoleSync.managers.ConfigManager;
 import net.gabbage.discordRoleSync.managers.DiscordManager;
+import net.gabbage.discordRoleSync.storage.LinkIndex;
+import net.gabbage.discordRoleSync.storage.LinkMetadata;
+import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue.Priority;
 import net.milkbowl.vault.permission.Permission;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
-import org.bukkit.entity.Player;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 public class RoleSyncService {
 
     private final DiscordRoleSync plugin;
-    private final Set<UUID> playersCurrentlyProcessing = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, ProcessingLock> playersCurrentlyProcessing = new ConcurrentHashMap<>(); // Present while a run for the player is in progress
     private final ConfigManager configManager;
     private final Permission vaultPerms;
+    private final Executor mainThread; // Vault changes are made on the server thread
+    private final Executor offMainThread; // Vault lookups for offline players may block, so they run on the scheduler's async threads
 
     public record RoleMapping(String ingameGroup, String discordRoleId, String discordRoleName, String syncDirection) {}
-    private List<RoleMapping> parsedMappings; // Made non-final, populated by loadAndParseRoleMappings
+    private volatile MappingTable mappingTable = MappingTable.EMPTY; // Replaced as a whole by loadAndParseRoleMappings
+
+    private final Set<UUID> pendingGroupChanges = ConcurrentHashMap.newKeySet(); // Players with a debounced In-game -> Discord sync scheduled
+    private final Map<UUID, BothDisagreements> lastBothDisagreements = new ConcurrentHashMap<>(); // Per player, from their last full sync
+
+    private static final String TYPE_SYNC = "Sync";
+    private static final String TYPE_UNLINK = "Unlink";
+    private static final String TYPE_ROLE_CHANGE = "Role Change";
+    private static final String TYPE_GROUP_CHANGE = "Group Change";
+
+    private static final String ROLES_OPERATION = "roles"; // Pending role updates of a member are merged into one request
+
+    private record SyncOutcome(long stateFingerprint, long agreedState) {}
+
+    private record BothDisagreements(MappingTable table, long[] entries) {}
+
+    /**
+     * Held by the run in progress for a player. Requests for the player that arrive meanwhile are coalesced into a
+     * single follow-up run, started when the lock is released, so no request is lost and at most two runs per player
+     * are ever outstanding. Only changed within the map's atomic operations.
+     */
+    private static final class ProcessingLock {
+        private FollowUp followUp;
+
+        private FollowUp requestFollowUp(boolean force, Priority priority, String unlinkDiscordId) {
+            if (followUp == null) {
+                followUp = new FollowUp();
+            }
+            followUp.force |= force;
+            if (priority.ordinal() < followUp.priority.ordinal()) {
+                followUp.priority = priority; // Runs as urgently as the most urgent request
+            }
+            if (unlinkDiscordId != null) {
+                followUp.unlinkDiscordId = unlinkDiscordId; // The link is gone, so clearing supersedes syncing
+            }
+            return followUp;
+        }
+    }
+
+    private static final class FollowUp {
+        private boolean force;
+        private Priority priority = Priority.BACKGROUND;
+        private String unlinkDiscordId;
+        private final CompletableFuture<SyncResult> result = new CompletableFuture<>(); // Shared by every coalesced request
+    }
 
     public RoleSyncService(DiscordRoleSync plugin) {
         this.plugin = plugin;
         this.configManager = plugin.getConfigManager();
         this.vaultPerms = DiscordRoleSync.getVaultPermissions(); // Get Vault instance
-        this.parsedMappings = new ArrayList<>(); // Initialize as empty
+        this.mainThread = task -> plugin.getServer().getScheduler().runTask(plugin, task);
+        this.offMainThread = task -> {
+            // Always handed over, as callers on other threads (JDA's event and callback threads) must not block either
+            try {
+                plugin.getServer().getScheduler().runTaskAsynchronously(plugin, task);
+            } catch (RuntimeException e) { // Plugin is being disabled
+                task.run();
+            }
+        };
     }
 
     public void loadAndParseRoleMappings() {
@@ -60,7 +125,7 @@ public class RoleSyncService {
         for (java.util.Map<?, ?> mappingMap : configuredMappings) {
             String ingameGroup = getStringFromMap(mappingMap, "ingame", null);
             String discordRoleIdStr = getStringFromMap(mappingMap, "discord", null);
-            String syncDirection = getStringFromMap(mappingMap, "direction", "BOTH").toUpperCase(); // Default to BOTH
+            String directionStr = getStringFromMap(mappingMap, "direction", "BOTH"); // Default to BOTH
 
             if (ingameGroup == null || discordRoleIdStr == null) {
                 plugin.getLogger().warning("Invalid role mapping found: missing 'ingame' or 'discord' field. Map: " + mappingMap);
@@ -69,33 +134,36 @@ public class RoleSyncService {
             ingameGroup = ingameGroup.trim();
             discordRoleIdStr = discordRoleIdStr.trim();
 
-            if (!List.of("BOTH", "INGAME_TO_DISCORD", "DISCORD_TO_INGAME").contains(syncDirection)) {
-                plugin.getLogger().warning("Invalid sync direction '" + syncDirection + "' for mapping '" + ingameGroup + ":" + discordRoleIdStr + "'. Defaulting to 'BOTH'.");
-                syncDirection = "BOTH";
+            SyncDirection syncDirection = SyncDirection.parse(directionStr);
+            if (syncDirection == null) {
+                plugin.getLogger().warning("Invalid sync direction '" + directionStr + "' for mapping '" + ingameGroup + ":" + discordRoleIdStr + "'. Defaulting to 'BOTH'.");
+                syncDirection = SyncDirection.BOTH;
+            }
+
+            long discordRoleId;
+            try {
+                discordRoleId = Long.parseLong(discordRoleIdStr);
+            } catch (NumberFormatException e) {
+                plugin.getLogger().warning("Invalid Discord Role ID format: " + discordRoleIdStr + " in mapping for ingame group: " + ingameGroup);
+                continue;
             }
 
             String discordRoleName = "Unknown Role (ID: " + discordRoleIdStr + ")";
             if (guild != null) {
-                try {
-                    Role discordRole = guild.getRoleById(discordRoleIdStr);
-                    if (discordRole != null) {
-                        discordRoleName = discordRole.getName();
-                    } else {
-                        plugin.getLogger().warning("Could not find Discord role with ID: " + discordRoleIdStr + " in guild " + guild.getName() + " for mapping: " + ingameGroup);
-                    }
-                } catch (NumberFormatException e) {
-                    plugin.getLogger().warning("Invalid Discord Role ID format: " + discordRoleIdStr + " in mapping for ingame group: " + ingameGroup);
-                    continue;
+                Role discordRole = guild.getRoleById(discordRoleId);
+                if (discordRole != null) {
+                    discordRoleName = discordRole.getName();
+                } else {
+                    plugin.getLogger().warning("Could not find Discord role with ID: " + discordRoleIdStr + " in guild " + guild.getName() + " for mapping: " + ingameGroup);
                 }
             }
 
-            mappings.add(new RoleMapping(ingameGroup, discordRoleIdStr, discordRoleName, syncDirection));
+            mappings.add(new RoleMapping(ingameGroup, discordRoleIdStr, discordRoleName, syncDirection.name()));
         }
 
-        this.parsedMappings.clear();
-        this.parsedMappings.addAll(mappings);
-        plugin.getLogger().info("Loaded " + this.parsedMappings.size() + " role mappings.");
-        if (this.parsedMappings.isEmpty() && configuredMappings != null && !configuredMappings.isEmpty()) {
+        this.mappingTable = MappingTable.compile(mappings);
+        plugin.getLogger().info("Loaded " + mappings.size() + " role mappings.");
+        if (mappings.isEmpty() && configuredMappings != null && !configuredMappings.isEmpty()) {
             plugin.getLogger().warning("No valid role mappings were parsed, but " + configuredMappings.size() + " mapping entries were found in config. Please check their format (each entry should be a map with 'ingame', 'discord', and optionally 'direction').");
         }
     }
@@ -108,328 +176,786 @@ public class RoleSyncService {
         return defaultValue;
     }
 
-    private void finalizePlayerProcessing(UUID playerUUID, String playerName, AtomicInteger pendingOpsCounter, String operationContext, String type) {
-        if (pendingOpsCounter.decrementAndGet() == 0) {
-            plugin.getLogger().info("All " + type + " operations for " + playerName + " (UUID: " + playerUUID + ") completed. Releasing processing lock.");
-            playersCurrentlyProcessing.remove(playerUUID);
+    /**
+     * One sync, unlink or targeted change of a player, holding their processing lock. Each Discord or Vault
+     * operation it starts is added as a future that completes with whether it succeeded. Syncs only start operations
+     * for changes that are needed, so a sync without operations found everything in sync. The run ends once all of
+     * them have, or at the deadline ({@code sync.timeout-seconds}) if one never reports back, and always releases the
+     * lock exactly once.
+     */
+    private final class SyncRun {
+        private final UUID playerUUID;
+        private final String playerName;
+        private final String type;
+        private final Priority priority; // Of the run's Discord requests
+        private final boolean recordsOutcome; // Full syncs report to the link metadata
+        private final long startNanos = System.nanoTime();
+        private final List<CompletableFuture<Boolean>> operations = new CopyOnWriteArrayList<>(); // Read by the deadline while still being added to
+        private volatile SyncOutcome outcome;
+        private volatile String failure; // Why the run could not do its work, e.g. the member could not be retrieved
+        private volatile boolean unchanged; // Skipped because nothing changed since the last successful sync
+
+        private SyncRun(UUID playerUUID, String playerName, String type, Priority priority, boolean recordsOutcome) {
+            this.playerUUID = playerUUID;
+            this.playerName = playerName;
+            this.type = type;
+            this.priority = priority;
+            this.recordsOutcome = recordsOutcome;
+        }
+
+        private void add(String operationContext, CompletableFuture<Boolean> operation) {
+            operations.add(operation.handle((succeeded, error) -> {
+                if (error != null) {
+                    plugin.getLogger().warning(type + " operation (" + operationContext + ") for " + playerName + " could not run: " + unwrap(error).getMessage());
+                    return false;
+                }
+                if (!succeeded) {
+                    plugin.getLogger().fine(type + " operation (" + operationContext + ") for " + playerName + " failed.");
+                }
+                return succeeded;
+            }));
+        }
+
+        private void fail(String reason) {
+            failure = reason;
+        }
+
+        private void skipUnchanged() {
+            unchanged = true;
+        }
+
+        /**
+         * @return Completes once every operation added so far has.
+         */
+        private CompletableFuture<Void> allOperations() {
+            return CompletableFuture.allOf(operations.toArray(new CompletableFuture<?>[0]));
+        }
+
+        /**
+         * Starts the deadline for work, which completes once the run has added and awaited all its operations.
+         */
+        private CompletableFuture<SyncResult> finish(CompletableFuture<?> work) {
+            long timeoutSeconds = configManager.getSyncTimeoutSeconds();
+            return work.orTimeout(timeoutSeconds, TimeUnit.SECONDS).handle((ignored, error) -> end(error, timeoutSeconds));
+        }
+
+        private SyncResult end(Throwable error, long timeoutSeconds) {
+            releaseProcessingLock(playerUUID); // First, so nothing below can keep the player locked
+
+            int failedOperations = 0;
+            int pendingOperations = 0;
+            for (CompletableFuture<Boolean> operation : operations) {
+                if (!operation.isDone()) {
+                    pendingOperations++;
+                } else if (!operation.join()) {
+                    failedOperations++;
+                }
+            }
+            error = error != null ? unwrap(error) : null;
+            SyncResult.Status status;
+            String message = failure;
+            if (error instanceof TimeoutException) {
+                status = SyncResult.Status.TIMED_OUT;
+                message = pendingOperations + " of " + operations.size() + " operations did not complete within " + timeoutSeconds + " seconds";
+                plugin.getLogger().warning(type + " for " + playerName + " (UUID: " + playerUUID + ") timed out: " + message + ". Releasing processing lock.");
+            } else if (error != null) {
+                status = SyncResult.Status.FAILED;
+                message = String.valueOf(error);
+                plugin.getLogger().log(Level.SEVERE, "Unexpected error during " + type + " for " + playerName + " (UUID: " + playerUUID + "). Releasing processing lock.", error);
+            } else if (unchanged) {
+                status = SyncResult.Status.UNCHANGED;
+            } else {
+                status = failure != null || failedOperations > 0 ? SyncResult.Status.FAILED : SyncResult.Status.COMPLETED;
+                plugin.getLogger().info("All " + type + " operations for " + playerName + " (UUID: " + playerUUID + ") completed. Releasing processing lock.");
+            }
+
+            if (recordsOutcome && status != SyncResult.Status.UNCHANGED) {
+                SyncOutcome syncOutcome = outcome;
+                if (status != SyncResult.Status.COMPLETED) {
+                    recordSyncOutcome(playerUUID, true, 0L, 0L);
+                } else if (syncOutcome != null) {
+                    // The fingerprint is of the state before this run. It is only kept if the run changed nothing, so a
+                    // side changed back to that state later is not mistaken for unchanged; the next sync stores it instead.
+                    long stateFingerprint = operations.isEmpty() ? syncOutcome.stateFingerprint() : 0L;
+                    recordSyncOutcome(playerUUID, false, stateFingerprint, syncOutcome.agreedState());
+                }
+            }
+            long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            return new SyncResult(playerUUID, type, status, operations.size(), failedOperations, durationMillis, message);
+        }
+    }
+
+    /**
+     * Acquires the player's processing lock, or if a run is already in progress, coalesces this request into the
+     * follow-up run of that lock.
+     *
+     * @param unlinkDiscordId Set if the follow-up must clear the roles of this unlinked Discord account rather than
+     *                        synchronize.
+     * @return null if the lock was acquired, otherwise the follow-up this request was coalesced into.
+     */
+    private FollowUp acquireOrFollowUp(UUID playerUUID, boolean force, Priority priority, String unlinkDiscordId) {
+        while (true) {
+            if (playersCurrentlyProcessing.putIfAbsent(playerUUID, new ProcessingLock()) == null) {
+                return null;
+            }
+            FollowUp[] followUp = new FollowUp[1];
+            playersCurrentlyProcessing.computeIfPresent(playerUUID, (key, lock) -> {
+                followUp[0] = lock.requestFollowUp(force, priority, unlinkDiscordId);
+                return lock;
+            });
+            if (followUp[0] != null) {
+                return followUp[0];
+            }
+            // Released in between, try to acquire again
+        }
+    }
+
+    private void releaseProcessingLock(UUID playerUUID) {
+        ProcessingLock lock = playersCurrentlyProcessing.remove(playerUUID);
+        if (lock != null && lock.followUp != null) {
+            startFollowUp(playerUUID, lock.followUp);
+        }
+    }
+
+    private void startFollowUp(UUID playerUUID, FollowUp followUp) {
+        try {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                // Whoever waits on the follow-up gets a result even if the run could not be started or failed unexpectedly
+                try {
+                    CompletableFuture<SyncResult> run;
+                    LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+                    String discordId = linkedPlayersManager != null ? linkedPlayersManager.getDiscordId(playerUUID) : null; // The link may have changed meanwhile
+                    if (followUp.unlinkDiscordId != null) {
+                        run = clearRolesOnUnlink(playerUUID, followUp.unlinkDiscordId);
+                        if (discordId != null) { // Linked again since
+                            run = run.thenCompose(cleared -> synchronizeRoles(playerUUID, discordId, followUp.force, followUp.priority));
+                        }
+                    } else if (discordId == null) {
+                        run = notRun(playerUUID, TYPE_SYNC, SyncResult.Status.NOT_RUN, "No longer linked");
+                    } else {
+                        plugin.getLogger().fine("Starting follow-up role synchronization for " + playerUUID + " requested while the previous run was in progress.");
+                        run = synchronizeRoles(playerUUID, discordId, followUp.force, followUp.priority);
+                    }
+                    run.whenComplete((result, error) -> followUp.result.complete(error == null ? result : followUpFailed(playerUUID, error)));
+                } catch (RuntimeException e) {
+                    followUp.result.complete(followUpFailed(playerUUID, e));
+                }
+            });
+        } catch (RuntimeException e) { // Plugin is being disabled
+            followUp.result.complete(SyncResult.notRun(playerUUID, TYPE_SYNC, SyncResult.Status.NOT_RUN, "Plugin disabled"));
+        }
+    }
+
+    private SyncResult followUpFailed(UUID playerUUID, Throwable error) {
+        error = unwrap(error);
+        plugin.getLogger().log(Level.SEVERE, "Unexpected error during the follow-up run for " + playerUUID + ".", error);
+        return SyncResult.notRun(playerUUID, TYPE_SYNC, SyncResult.Status.FAILED, String.valueOf(error));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private void recordSyncOutcome(UUID playerUUID, boolean failed, long stateFingerprint, long agreedState) {
+        LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+        if (linkedPlayersManager == null) {
+            return; // Plugin is shutting down
+        }
+        if (failed) {
+            linkedPlayersManager.recordSyncFailure(playerUUID);
         } else {
-            plugin.getLogger().fine(type + " operation (" + operationContext + ") for " + playerName + " completed, " + pendingOpsCounter.get() + " still pending.");
+            linkedPlayersManager.recordSyncSuccess(playerUUID, stateFingerprint, agreedState);
+        }
+    }
+
+    /**
+     * Hashes the state a sync decision is based on: which mappings the player's groups match, which mapped
+     * Discord roles the member holds and, if nicknames are synchronized, whether the nickname is already set.
+     * Stored with the link by a sync that found nothing to change, so unchanged players can be recognised later.
+     * The mappings contribute a hash of their content, so fingerprints stay valid across restarts and unchanged reloads.
+     */
+    private long computeStateFingerprint(MappingTable table, long[] groupBits, long[] roleBits, Member discordMember, String playerName) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a 64
+        hash = (hash ^ table.getContentHash()) * 0x100000001b3L; // Different mappings mean a different state
+        for (long word : groupBits) {
+            hash = (hash ^ word) * 0x100000001b3L;
+        }
+        for (long word : roleBits) {
+            hash = (hash ^ word) * 0x100000001b3L;
+        }
+        int nicknameState = 0;
+        if (configManager.shouldSynchronizeDiscordNickname()) {
+            nicknameState = playerName.equals(discordMember.getNickname()) ? 2 : 1;
+        }
+        return (hash ^ nicknameState) * 0x100000001b3L;
+    }
+
+    /**
+     * Checks the player against the fingerprint of their last successful sync using only the cached member, so an
+     * unchanged player costs no Discord request. Players whose last sync failed are never considered unchanged.
+     */
+    private boolean isUnchangedSinceLastSync(MappingTable table, UUID mcUUID, PermissionSnapshot permissions, Member cachedMember, String playerName) {
+        LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+        LinkMetadata metadata = linkedPlayersManager != null ? linkedPlayersManager.getLinkMetadata(mcUUID) : null;
+        if (metadata == null || metadata.stateFingerprint() == 0L || metadata.failureCount() > 0) {
+            return false;
         }
+        long[] groupBits = table.entryBitsForGroups(permissions.getGroupKeys());
+        long[] roleBits = table.entryBitsForMemberRoles(cachedMember);
+        return computeStateFingerprint(table, groupBits, roleBits, cachedMember, playerName) == metadata.stateFingerprint();
     }
 
-    public void synchronizeRoles(UUID minecraftPlayerUUID, String discordUserId) {
+    /**
+     * Synchronizes the player's roles, skipping players whose state has not changed since their last successful
+     * sync.
+     */
+    public CompletableFuture<SyncResult> synchronizeRoles(UUID minecraftPlayerUUID, String discordUserId, Priority priority) {
+        return synchronizeRoles(minecraftPlayerUUID, discordUserId, false, priority);
+    }
+
+    /**
+     * @param force Whether to run the full sync even if the player appears unchanged since their last successful
+     *              sync, e.g. when explicitly requested by an admin.
+     * @param priority The lane of the sync's Discord requests, by how urgently the player waits for the result.
+     * @return Completes when every operation of the sync has, or at the deadline. Never completes exceptionally.
+     */
+    public CompletableFuture<SyncResult> synchronizeRoles(UUID minecraftPlayerUUID, String discordUserId, boolean force, Priority priority) {
+        return synchronizeRoles(minecraftPlayerUUID, discordUserId, force, priority, null);
+    }
+
+    /**
+     * @param prefetchedMember The player's Discord member if it was already fetched, e.g. in bulk by the periodic
+     *                         sync, so it is not requested again. Null to retrieve it.
+     */
+    public CompletableFuture<SyncResult> synchronizeRoles(UUID minecraftPlayerUUID, String discordUserId, boolean force, Priority priority, Member prefetchedMember) {
         OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(minecraftPlayerUUID);
         String playerName = offlinePlayer.getName() != null ? offlinePlayer.getName() : minecraftPlayerUUID.toString();
 
-        if (!playersCurrentlyProcessing.add(minecraftPlayerUUID)) {
-            plugin.getLogger().info("Role synchronization for " + playerName + " (UUID: " + minecraftPlayerUUID + ") is already in progress. Skipping this request.");
-            return;
+        FollowUp followUp = acquireOrFollowUp(minecraftPlayerUUID, force, priority, null);
+        if (followUp != null) {
+            plugin.getLogger().fine("Role synchronization for " + playerName + " (UUID: " + minecraftPlayerUUID + ") is already in progress. Another sync will follow it.");
+            return followUp.result;
         }
 
-        plugin.getLogger().info("Starting role synchronization for " + playerName + " (UUID: " + minecraftPlayerUUID + ", Discord ID: " + discordUserId + "). Processing lock acquired.");
-
-        if (parsedMappings == null || parsedMappings.isEmpty()) {
+        MappingTable table = mappingTable; // One consistent set of mappings for the whole sync
+        if (table.isEmpty()) {
             plugin.getLogger().fine("No role mappings configured or loaded. Skipping synchronization for " + playerName);
-            playersCurrentlyProcessing.remove(minecraftPlayerUUID); // Release lock
-            return;
+            return releaseNotRun(minecraftPlayerUUID, SyncResult.Status.NOT_RUN, "No role mappings");
         }
 
         if (!offlinePlayer.hasPlayedBefore() && !offlinePlayer.isOnline()) {
             plugin.getLogger().warning("Cannot synchronize roles for " + playerName + ": Player data not found.");
-            playersCurrentlyProcessing.remove(minecraftPlayerUUID); // Release lock
-            return;
+            return releaseNotRun(minecraftPlayerUUID, SyncResult.Status.NOT_RUN, "Player data not found");
         }
 
         if (plugin.getDiscordManager().getJda() == null) {
             plugin.getLogger().warning("JDA not available. Cannot synchronize roles for " + playerName);
-            playersCurrentlyProcessing.remove(minecraftPlayerUUID); // Release lock
-            return;
+            return releaseNotRun(minecraftPlayerUUID, SyncResult.Status.NOT_RUN, "JDA not available");
         }
 
         String guildId = configManager.getDiscordGuildId();
         if (guildId == null || guildId.isEmpty()) {
             plugin.getLogger().warning("Discord Guild ID not configured. Cannot synchronize roles.");
-            playersCurrentlyProcessing.remove(minecraftPlayerUUID); // Release lock
-            return;
+            return releaseNotRun(minecraftPlayerUUID, SyncResult.Status.NOT_RUN, "Discord Guild ID not configured");
         }
         Guild guild = plugin.getDiscordManager().getJda().getGuildById(guildId);
         if (guild == null) {
             plugin.getLogger().warning("Discord Guild with ID " + guildId + " not found. Cannot synchronize roles.");
-            playersCurrentlyProcessing.remove(minecraftPlayerUUID); // Release lock
-            return;
+            return releaseNotRun(minecraftPlayerUUID, SyncResult.Status.NOT_RUN, "Discord Guild not found");
         }
 
-        final AtomicInteger operationsCounter = new AtomicInteger(1); // Start at 1 for the initial retrieveMemberById completion
+        SyncRun run = new SyncRun(minecraftPlayerUUID, playerName, TYPE_SYNC, priority, true);
+        // Vault is queried once, off the server thread; the skip check and every mapping are evaluated against the same snapshot
+        CompletableFuture<PermissionSnapshot> permissionLookup = CompletableFuture.supplyAsync(
+                () -> vaultPerms != null ? PermissionSnapshot.capture(vaultPerms, offlinePlayer, configManager.shouldMatchAllGroups()) : null, offMainThread);
+        CompletableFuture<Void> work = permissionLookup.thenCompose(permissions -> {
+            if (!force && permissions != null) {
+                Member cachedMember = prefetchedMember != null ? prefetchedMember : guild.getMemberById(discordUserId);
+                if (cachedMember != null && isUnchangedSinceLastSync(table, minecraftPlayerUUID, permissions, cachedMember, playerName)) {
+                    plugin.getLogger().fine("Skipping role synchronization for " + playerName + ": nothing changed since the last successful sync.");
+                    run.skipUnchanged();
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
+
+            plugin.getLogger().info("Starting role synchronization for " + playerName + " (UUID: " + minecraftPlayerUUID + ", Discord ID: " + discordUserId + "). Processing lock acquired.");
 
-        guild.retrieveMemberById(discordUserId).queue(
-            discordMember -> {
+            CompletableFuture<Member> memberLookup = prefetchedMember != null ? CompletableFuture.completedFuture(prefetchedMember) : guild.retrieveMemberById(discordUserId).submit();
+            return memberLookup.handle((discordMember, failure) -> {
+                if (failure != null) {
+                    plugin.getLogger().warning("Could not retrieve Discord member " + discordUserId + " in guild " + guild.getName() + " for role sync: " + unwrap(failure).getMessage());
+                    run.fail("Could not retrieve Discord member");
+                    return null;
+                }
+                return discordMember;
+            }).thenCompose(discordMember -> {
+                if (discordMember == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
                 plugin.getLogger().fine("Synchronizing roles for MC: " + playerName + " and Discord: " + discordMember.getUser().getAsTag());
 
-                if (configManager.shouldSynchronizeDiscordNickname()) {
-                    operationsCounter.incrementAndGet();
-                    plugin.getDiscordManager().setDiscordNickname(discordUserId, playerName,
-                        () -> finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Set Discord Nickname Success", "Sync"),
-                        () -> finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Set Discord Nickname Failure", "Sync")
-                    );
+                long[] groupBits = null;
+                long[] roleBits = null;
+                BothReconciliation reconciliation = null;
+                if (permissions != null) {
+                    groupBits = table.entryBitsForGroups(permissions.getGroupKeys());
+                    roleBits = table.entryBitsForMemberRoles(discordMember);
+                    LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+                    LinkMetadata metadata = linkedPlayersManager != null ? linkedPlayersManager.getLinkMetadata(minecraftPlayerUUID) : null;
+                    reconciliation = BothReconciliation.reconcile(table, groupBits, roleBits, metadata != null ? metadata.agreedState() : 0L);
+                    reportNonConvergence(table, reconciliation, minecraftPlayerUUID, playerName);
+                    run.outcome = new SyncOutcome(computeStateFingerprint(table, groupBits, roleBits, discordMember, playerName), reconciliation.getAgreedState());
                 }
 
-                if (parsedMappings.isEmpty()) { // Double check after lock acquisition and JDA checks
-                     finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "No Mappings Post-Lock", "Sync"); // This handles the retrieveMemberById completion
-                     return; // Exit if no mappings
+                if (configManager.shouldSynchronizeDiscordNickname() && !playerName.equals(discordMember.getNickname())) {
+                    CompletableFuture<Boolean> nicknameSet = new CompletableFuture<>();
+                    plugin.getDiscordManager().setDiscordNickname(discordMember, playerName, priority, () -> nicknameSet.complete(true), () -> nicknameSet.complete(false));
+                    run.add("Set Discord Nickname", nicknameSet);
                 }
 
-                for (RoleMapping mapping : parsedMappings) {
-                    plugin.getLogger().fine("Processing mapping for sync: Ingame '" + mapping.ingameGroup() + "' <-> Discord Role '" + mapping.discordRoleName() + "' (ID: " + mapping.discordRoleId() + ") with direction: " + mapping.syncDirection());
-                    switch (mapping.syncDirection()) {
-                        case "INGAME_TO_DISCORD":
-                            operationsCounter.incrementAndGet();
-                            syncSingleIngameToDiscord(offlinePlayer, discordMember, guild, mapping, operationsCounter, playerName, minecraftPlayerUUID);
-                            break;
-                        case "DISCORD_TO_INGAME":
-                            operationsCounter.incrementAndGet();
-                            syncSingleDiscordToIngame(offlinePlayer, discordMember, guild, mapping, operationsCounter, playerName, minecraftPlayerUUID);
-                            break;
-                        case "BOTH":
-                            plugin.getLogger().fine("Sync direction: BOTH for " + mapping.ingameGroup() + ". Syncing In-game -> Discord first.");
-                            operationsCounter.incrementAndGet();
-                            syncSingleIngameToDiscord(offlinePlayer, discordMember, guild, mapping, operationsCounter, playerName, minecraftPlayerUUID);
-                            plugin.getLogger().fine("Sync direction: BOTH for " + mapping.ingameGroup() + ". Syncing Discord -> In-game second.");
-                            operationsCounter.incrementAndGet();
-                            syncSingleDiscordToIngame(offlinePlayer, discordMember, guild, mapping, operationsCounter, playerName, minecraftPlayerUUID);
-                            break;
-                        default:
-                            plugin.getLogger().warning("Unknown sync direction '" + mapping.syncDirection() + "' for mapping '" + mapping.ingameGroup() + "'. Skipping this mapping.");
-                            // If we skip, we should still decrement a counter if one was conceptually allocated for this mapping.
-                            // However, the current logic increments *before* calling, so no explicit decrement needed here if we just skip.
-                    }
+                // All In-game -> Discord mappings are applied together in a single role update request
+                syncIngameToDiscord(table, groupBits, reconciliation != null ? reconciliation.getDiscordWins() : null, discordMember, guild, playerName, run);
+
+                if (permissions != null) {
+                    syncDiscordToIngame(table, reconciliation.getToIngameCandidates(), groupBits, roleBits, offlinePlayer, guild, run);
+                } else if (!table.getToIngameEntries().isEmpty()) {
+                    plugin.getLogger().severe("[D2I] Vault permissions not available. Skipping Discord -> In-game sync.");
                 }
-                // Final decrement for the retrieveMemberById completion itself
-                finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Main Sync Logic Completion (after processing mappings)", "Sync");
-            },
-            failure -> {
-                plugin.getLogger().warning("Could not retrieve Discord member " + discordUserId + " in guild " + guild.getName() + " for role sync: " + failure.getMessage());
-                playersCurrentlyProcessing.remove(minecraftPlayerUUID); // Release lock on failure
-            }
-        );
+                return run.allOperations();
+            });
+        });
+        return run.finish(work);
     }
 
-    private void syncSingleIngameToDiscord(OfflinePlayer offlinePlayer, Member discordMember, Guild guild, RoleMapping mapping, AtomicInteger opsCounter, String playerName, UUID mcUUID) {
-        Player onlinePlayer = offlinePlayer.isOnline() ? offlinePlayer.getPlayer() : null;
-        String worldName = (onlinePlayer != null && onlinePlayer.getWorld() != null) ? onlinePlayer.getWorld().getName() : null;
+    private static CompletableFuture<SyncResult> notRun(UUID playerUUID, String type, SyncResult.Status status, String message) {
+        return CompletableFuture.completedFuture(SyncResult.notRun(playerUUID, type, status, message));
+    }
+
+    private CompletableFuture<SyncResult> releaseNotRun(UUID playerUUID, SyncResult.Status status, String message) {
+        releaseProcessingLock(playerUUID);
+        return notRun(playerUUID, TYPE_SYNC, status, message);
+    }
 
+    /**
+     * Reports BOTH mappings that needed reconciling in two full syncs in a row. A reconciled mapping agrees on the
+     * next sync unless something keeps changing one side back, or the change could not be applied.
+     */
+    private void reportNonConvergence(MappingTable table, BothReconciliation reconciliation, UUID mcUUID, String playerName) {
+        long[] disagreements = reconciliation.getDisagreements();
+        BothDisagreements previous = MappingTable.isEmpty(disagreements)
+                ? lastBothDisagreements.remove(mcUUID)
+                : lastBothDisagreements.put(mcUUID, new BothDisagreements(table, disagreements));
+        if (previous == null || previous.table() != table) {
+            return;
+        }
+        for (int index = MappingTable.nextSetBit(disagreements, 0); index >= 0; index = MappingTable.nextSetBit(disagreements, index + 1)) {
+            if (MappingTable.isBitSet(previous.entries(), index)) {
+                RoleMapping mapping = table.getEntries().get(index).mapping();
+                plugin.getLogger().warning("[BOTH] Mapping '" + mapping.ingameGroup() + "' <-> '" + mapping.discordRoleName() + "' is not converging for " + playerName
+                        + ": the in-game group and Discord role disagreed again after the previous sync reconciled them. Check for another plugin or bot changing one side, a conflicting mapping, or missing bot permissions.");
+            }
+        }
+    }
+
+    /**
+     * Adds a role update to the run if the member's roles differ from what the In-game -> Discord mappings want.
+     *
+     * @param discordWins BOTH entries that are being applied Discord -> In-game in this sync and must not drive
+     *                    their role here.
+     */
+    private void syncIngameToDiscord(MappingTable table, long[] groupBits, long[] discordWins, Member discordMember, Guild guild, String playerName, SyncRun run) {
         if (vaultPerms == null) {
-            plugin.getLogger().severe("[I2D] Vault permissions not available for mapping '" + mapping.ingameGroup() + "'. Skipping.");
-            finalizePlayerProcessing(mcUUID, playerName, opsCounter, "VaultPermsNull_I2D_" + mapping.ingameGroup(), "Sync");
+            plugin.getLogger().severe("[I2D] Vault permissions not available. Skipping In-game -> Discord sync.");
+            run.fail("Vault permissions not available");
             return;
         }
 
-        String primaryGroup = vaultPerms.getPrimaryGroup(worldName, offlinePlayer);
-        boolean playerHasIngameGroup = primaryGroup != null && primaryGroup.equalsIgnoreCase(mapping.ingameGroup());
+        // Desired state per role: a role is wanted if any In-game -> Discord mapping for the player's groups targets it.
+        // Only roles where the desired and held state differ need a change, and only roles with a mapping that
+        // applies In-game -> Discord in this sync are managed here.
+        long[] toDiscordEntryBits = table.getToDiscordEntryBits();
+        long[] drivingEntries = new long[toDiscordEntryBits.length];
+        long[] wantingEntries = new long[toDiscordEntryBits.length];
+        for (int i = 0; i < drivingEntries.length; i++) {
+            drivingEntries[i] = toDiscordEntryBits[i] & ~discordWins[i];
+            wantingEntries[i] = drivingEntries[i] & groupBits[i];
+        }
+        long[] managedRoles = table.toDiscordRoleBitsForEntries(drivingEntries);
+        long[] wantedRoles = table.toDiscordRoleBitsForEntries(wantingEntries);
+        long[] changedRoles = table.heldToDiscordRoleBits(discordMember);
+        for (int i = 0; i < changedRoles.length; i++) {
+            changedRoles[i] = (changedRoles[i] ^ wantedRoles[i]) & managedRoles[i];
+        }
+        long[] toDiscordRoleIds = table.getToDiscordRoleIds();
+        List<Role> rolesToAdd = new ArrayList<>();
+        List<Role> rolesToRemove = new ArrayList<>();
+        for (int slot = MappingTable.nextSetBit(changedRoles, 0); slot >= 0; slot = MappingTable.nextSetBit(changedRoles, slot + 1)) {
+            long discordRoleId = toDiscordRoleIds[slot];
+            boolean roleWanted = MappingTable.isBitSet(wantedRoles, slot);
+            Role discordRole = table.resolveRole(guild, discordRoleId);
+            if (discordRole == null) {
+                plugin.getLogger().warning("[I2D] Discord role ID " + discordRoleId + " not found. Skipping.");
+                continue;
+            }
+            (roleWanted ? rolesToAdd : rolesToRemove).add(discordRole);
+        }
 
-        Role discordRole = guild.getRoleById(mapping.discordRoleId());
-        if (discordRole == null) {
-            plugin.getLogger().warning("[I2D] Discord role ID " + mapping.discordRoleId() + " not found. Skipping.");
-            finalizePlayerProcessing(mcUUID, playerName, opsCounter, "RoleNotFound_I2D_" + mapping.discordRoleId(), "Sync");
+        if (rolesToAdd.isEmpty() && rolesToRemove.isEmpty()) { // No action needed
             return;
         }
 
-        boolean memberHasDiscordRole = discordMember.getRoles().contains(discordRole);
+        run.add("Modify Roles I2D", submitRoleUpdate(new RoleUpdate(guild, discordMember, rolesToAdd, rolesToRemove, "Role Sync: In-game groups of " + playerName), run.priority));
+    }
 
-        if (playerHasIngameGroup && !memberHasDiscordRole) {
-            plugin.getDiscordManager().getDiscordTaskQueue().submit(() -> {
-                try {
-                    guild.addRoleToMember(discordMember, discordRole).reason("Role Sync: User has in-game group " + mapping.ingameGroup()).complete(true);
-                    plugin.getLogger().fine("[I2D] Added Discord role '" + discordRole.getName() + "' to " + discordMember.getUser().getAsTag());
-                    finalizePlayerProcessing(mcUUID, playerName, opsCounter, "AddRoleSuccess_I2D_" + discordRole.getName(), "Sync");
-                } catch (Exception e) { // Catches JDA exceptions like InsufficientPermissionException, HierarchyException, RateLimitException, TimeoutException
-                    plugin.getLogger().log(Level.WARNING, "[I2D] Failed to add Discord role '" + discordRole.getName() + "' to " + discordMember.getUser().getAsTag() + ": " + e.getMessage(), e);
-                    finalizePlayerProcessing(mcUUID, playerName, opsCounter, "AddRoleFailure_I2D_" + discordRole.getName(), "Sync");
-                }
-            });
-        } else if (!playerHasIngameGroup && memberHasDiscordRole) {
-            plugin.getDiscordManager().getDiscordTaskQueue().submit(() -> {
-                try {
-                    guild.removeRoleFromMember(discordMember, discordRole).reason("Role Sync: User no longer has in-game group " + mapping.ingameGroup()).complete(true);
-                    plugin.getLogger().fine("[I2D] Removed Discord role '" + discordRole.getName() + "' from " + discordMember.getUser().getAsTag());
-                    finalizePlayerProcessing(mcUUID, playerName, opsCounter, "RemoveRoleSuccess_I2D_" + discordRole.getName(), "Sync");
-                } catch (Exception e) { // Catches JDA exceptions
-                    plugin.getLogger().log(Level.WARNING, "[I2D] Failed to remove Discord role '" + discordRole.getName() + "' from " + discordMember.getUser().getAsTag() + ": " + e.getMessage(), e);
-                    finalizePlayerProcessing(mcUUID, playerName, opsCounter, "RemoveRoleFailure_I2D_" + discordRole.getName(), "Sync");
-                }
-            });
-        } else { // No action needed for this mapping
-            finalizePlayerProcessing(mcUUID, playerName, opsCounter, "NoAction_I2D_" + mapping.ingameGroup(), "Sync");
+    private CompletableFuture<Boolean> submitRoleUpdate(RoleUpdate update, Priority priority) {
+        return plugin.getDiscordManager().getDiscordTaskQueue().submit(update.member.getId(), ROLES_OPERATION, priority, update, RoleUpdate::merge);
+    }
+
+    /**
+     * One role update request for a member. While it waits in the Discord queue, a later update for the same member
+     * is merged into it, the later one deciding for every role both touch, so a role added and removed again before
+     * the request is sent is not changed at all.
+     */
+    private final class RoleUpdate implements Supplier<Boolean> {
+        private final Guild guild;
+        private final Member member;
+        private final Set<Role> rolesToAdd;
+        private final Set<Role> rolesToRemove;
+        private final String reason;
+
+        private RoleUpdate(Guild guild, Member member, Collection<Role> rolesToAdd, Collection<Role> rolesToRemove, String reason) {
+            this.guild = guild;
+            this.member = member;
+            this.rolesToAdd = new LinkedHashSet<>(rolesToAdd);
+            this.rolesToRemove = new LinkedHashSet<>(rolesToRemove);
+            this.reason = reason;
+        }
+
+        private RoleUpdate merge(RoleUpdate later) {
+            RoleUpdate merged = new RoleUpdate(later.guild, later.member, rolesToAdd, rolesToRemove, later.reason);
+            merged.rolesToAdd.removeAll(later.rolesToRemove);
+            merged.rolesToRemove.removeAll(later.rolesToAdd);
+            merged.rolesToAdd.addAll(later.rolesToAdd);
+            merged.rolesToRemove.addAll(later.rolesToRemove);
+            return merged;
+        }
+
+        @Override
+        public Boolean get() {
+            if (rolesToAdd.isEmpty() && rolesToRemove.isEmpty()) { // Merged updates cancelled each other out
+                return true;
+            }
+            try {
+                guild.modifyMemberRoles(member, rolesToAdd, rolesToRemove).reason(reason).complete(true);
+                plugin.getLogger().fine("Updated Discord roles of " + member.getUser().getAsTag() + ". Added: " + roleNames(rolesToAdd) + ", removed: " + roleNames(rolesToRemove));
+                return true;
+            } catch (Exception e) { // Catches JDA exceptions like InsufficientPermissionException, HierarchyException, RateLimitException, TimeoutException
+                plugin.getLogger().log(Level.WARNING, "Failed to update Discord roles of " + member.getUser().getAsTag() + " (add " + roleNames(rolesToAdd) + ", remove " + roleNames(rolesToRemove) + "): " + e.getMessage(), e);
+                return false;
+            }
         }
     }
 
-    private void syncSingleDiscordToIngame(OfflinePlayer offlinePlayer, Member discordMember, Guild guild, RoleMapping mapping, AtomicInteger opsCounter, String playerNameForLog, UUID mcUUID) {
-        // Vault operations are synchronous when called via Bukkit scheduler, so they don't need to increment the JDA opsCounter further.
-        // The opsCounter.incrementAndGet() was done before calling this method. This method just finalizes that one count.
-        String localPlayerName = offlinePlayer.getName() != null ? offlinePlayer.getName() : mcUUID.toString(); // Use local var for clarity
-        Player onlinePlayer = offlinePlayer.isOnline() ? offlinePlayer.getPlayer() : null;
-        String worldName = (onlinePlayer != null && onlinePlayer.getWorld() != null) ? onlinePlayer.getWorld().getName() : null;
+    private static String roleNames(Collection<Role> roles) {
+        List<String> names = new ArrayList<>(roles.size());
+        for (Role role : roles) {
+            names.add(role.getName());
+        }
+        return names.toString();
+    }
 
-        if (vaultPerms == null) {
-            plugin.getLogger().severe("[D2I] Vault permissions not available for mapping '" + mapping.ingameGroup() + "'.");
-            finalizePlayerProcessing(mcUUID, localPlayerName, opsCounter, "VaultPermsNull_D2I_" + mapping.ingameGroup(), "Sync");
-            return;
+    /**
+     * Applies the Discord -> In-game mappings among candidateEntries whose group and role membership differ, adding
+     * one operation per mapping to the run. Mappings that already agree are not visited at all.
+     */
+    private void syncDiscordToIngame(MappingTable table, long[] candidateEntries, long[] groupBits, long[] roleBits, OfflinePlayer offlinePlayer, Guild guild, SyncRun run) {
+        long[] changedEntries = new long[groupBits.length];
+        for (int i = 0; i < changedEntries.length; i++) {
+            changedEntries[i] = (groupBits[i] ^ roleBits[i]) & candidateEntries[i];
         }
+        for (int index = MappingTable.nextSetBit(changedEntries, 0); index >= 0; index = MappingTable.nextSetBit(changedEntries, index + 1)) {
+            MappingTable.Entry entry = table.getEntries().get(index);
+            plugin.getLogger().fine("Processing mapping for sync: Ingame '" + entry.mapping().ingameGroup() + "' <-> Discord Role '" + entry.mapping().discordRoleName() + "' (ID: " + entry.discordRoleId() + ") with direction: " + entry.direction());
+            boolean memberHasDiscordRole = MappingTable.isBitSet(roleBits, index);
+            run.add((memberHasDiscordRole ? "AddGroup_D2I_" : "RemoveGroup_D2I_") + entry.mapping().ingameGroup(),
+                    syncSingleDiscordToIngame(table, entry, memberHasDiscordRole, offlinePlayer, guild, run.playerName));
+        }
+    }
 
-        Role discordRole = guild.getRoleById(mapping.discordRoleId());
-        if (discordRole == null) {
+    private CompletableFuture<Boolean> syncSingleDiscordToIngame(MappingTable table, MappingTable.Entry entry, boolean memberHasDiscordRole, OfflinePlayer offlinePlayer, Guild guild, String playerName) {
+        RoleMapping mapping = entry.mapping();
+
+        // A role that no longer exists must not be read as "member lacks the role", which would strip the group
+        if (table.resolveRole(guild, entry.discordRoleId()) == null) {
             plugin.getLogger().warning("[D2I] Discord role ID " + mapping.discordRoleId() + " not found.");
-            finalizePlayerProcessing(mcUUID, localPlayerName, opsCounter, "RoleNotFound_D2I_" + mapping.discordRoleId(), "Sync");
-            return;
+            return CompletableFuture.completedFuture(true);
         }
 
-        boolean memberHasDiscordRole = discordMember.getRoles().contains(discordRole);
-        String primaryGroup = vaultPerms.getPrimaryGroup(worldName, offlinePlayer);
-        boolean playerHasIngameGroup = primaryGroup != null && primaryGroup.equalsIgnoreCase(mapping.ingameGroup());
-
-        if (memberHasDiscordRole && !playerHasIngameGroup) {
-            plugin.getServer().getScheduler().runTask(plugin, () -> {
+        // Only called for mappings where group and role membership differ
+        if (memberHasDiscordRole) {
+            return CompletableFuture.supplyAsync(() -> {
                 if (vaultPerms.playerAddGroup(null, offlinePlayer, mapping.ingameGroup())) {
-                    plugin.getLogger().fine("[D2I] Successfully added group '" + mapping.ingameGroup() + "' to " + localPlayerName);
-                } else {
-                    plugin.getLogger().warning("[D2I] Failed to add group '" + mapping.ingameGroup() + "' to " + localPlayerName);
+                    plugin.getLogger().fine("[D2I] Successfully added group '" + mapping.ingameGroup() + "' to " + playerName);
+                    return true;
                 }
-                finalizePlayerProcessing(mcUUID, localPlayerName, opsCounter, "AddGroupAttempt_D2I_" + mapping.ingameGroup(), "Sync");
-            });
-        } else if (!memberHasDiscordRole && playerHasIngameGroup) {
-            plugin.getServer().getScheduler().runTask(plugin, () -> {
-                if (vaultPerms.playerRemoveGroup(null, offlinePlayer, mapping.ingameGroup())) {
-                    plugin.getLogger().fine("[D2I] Successfully removed group '" + mapping.ingameGroup() + "' from " + localPlayerName);
-                } else {
-                    plugin.getLogger().warning("[D2I] Failed to remove group '" + mapping.ingameGroup() + "' from " + localPlayerName);
-                }
-                finalizePlayerProcessing(mcUUID, localPlayerName, opsCounter, "RemoveGroupAttempt_D2I_" + mapping.ingameGroup(), "Sync");
-            });
-        } else { // No action needed
-            finalizePlayerProcessing(mcUUID, localPlayerName, opsCounter, "NoAction_D2I_" + mapping.ingameGroup(), "Sync");
+                plugin.getLogger().warning("[D2I] Failed to add group '" + mapping.ingameGroup() + "' to " + playerName);
+                return false;
+            }, mainThread);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            if (vaultPerms.playerRemoveGroup(null, offlinePlayer, mapping.ingameGroup())) {
+                plugin.getLogger().fine("[D2I] Successfully removed group '" + mapping.ingameGroup() + "' from " + playerName);
+                return true;
+            }
+            plugin.getLogger().warning("[D2I] Failed to remove group '" + mapping.ingameGroup() + "' from " + playerName);
+            return false;
+        }, mainThread);
+    }
+
+    /**
+     * @return Whether a Discord -> In-game mapping uses any of the roles.
+     */
+    public boolean isSyncedToIngame(List<Role> roles) {
+        return !MappingTable.isEmpty(toIngameEntryBits(mappingTable, roles));
+    }
+
+    private static long[] toIngameEntryBits(MappingTable table, List<Role> roles) {
+        long[] entryBits = table.entryBitsForRoles(roles);
+        long[] toIngameEntryBits = table.getToIngameEntryBits();
+        for (int i = 0; i < entryBits.length; i++) {
+            entryBits[i] &= toIngameEntryBits[i];
         }
+        return entryBits;
     }
 
-    public void clearRolesOnUnlink(UUID minecraftPlayerUUID, String discordUserId) {
+    /**
+     * Applies only the Discord -> In-game mappings of roles that were just added to or removed from the member, as
+     * reported by the gateway. The event's member is already up to date, so no Discord request is made.
+     * Returns right away: the player lookup and Vault reads happen off the calling gateway thread.
+     */
+    public void syncDiscordRoleChange(UUID minecraftPlayerUUID, Member discordMember, List<Role> changedRoles) {
+        MappingTable table = mappingTable;
+        long[] candidateEntries = toIngameEntryBits(table, changedRoles);
+        if (MappingTable.isEmpty(candidateEntries)) {
+            return;
+        }
+        offMainThread.execute(() -> applyDiscordRoleChange(table, candidateEntries, minecraftPlayerUUID, discordMember));
+    }
+
+    private void applyDiscordRoleChange(MappingTable table, long[] candidateEntries, UUID minecraftPlayerUUID, Member discordMember) {
         OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(minecraftPlayerUUID);
         String playerName = offlinePlayer.getName() != null ? offlinePlayer.getName() : minecraftPlayerUUID.toString();
+        if (vaultPerms == null) {
+            plugin.getLogger().severe("[D2I] Vault permissions not available. Ignoring Discord role change of " + playerName + ".");
+            return;
+        }
 
-        if (!playersCurrentlyProcessing.add(minecraftPlayerUUID)) {
-            plugin.getLogger().info("Role clearing for " + playerName + " (UUID: " + minecraftPlayerUUID + ") is already in progress. Skipping this request.");
+        if (acquireOrFollowUp(minecraftPlayerUUID, false, Priority.ADMIN, null) != null) {
+            // The running sync may have read the member before this change, so a full sync follows it
+            plugin.getLogger().fine("Role synchronization for " + playerName + " is in progress. Discord role change will be picked up by the sync following it.");
             return;
         }
-        plugin.getLogger().info("Starting role clearing for " + playerName + " (UUID: " + minecraftPlayerUUID + ", Discord ID: " + discordUserId + "). Processing lock acquired.");
 
-        if (parsedMappings == null) { // Check if parsedMappings is null
-            plugin.getLogger().fine("No role mappings loaded. Skipping role clearing for " + playerName);
-            playersCurrentlyProcessing.remove(minecraftPlayerUUID);
+        plugin.getLogger().fine("Discord roles of " + discordMember.getUser().getAsTag() + " changed. Synchronizing mapped groups of " + playerName + ".");
+        SyncRun run = new SyncRun(minecraftPlayerUUID, playerName, TYPE_ROLE_CHANGE, Priority.ADMIN, false);
+        run.finish(CompletableFuture.supplyAsync(() -> {
+            Guild guild = discordMember.getGuild();
+            PermissionSnapshot permissions = PermissionSnapshot.capture(vaultPerms, offlinePlayer, configManager.shouldMatchAllGroups());
+            long[] groupBits = table.entryBitsForGroups(permissions.getGroupKeys());
+            long[] roleBits = table.entryBitsForMemberRoles(discordMember);
+            syncDiscordToIngame(table, candidateEntries, groupBits, roleBits, offlinePlayer, guild, run);
+            return run;
+        }, Runnable::run).thenCompose(SyncRun::allOperations)); // Already off the gateway thread
+    }
+
+    /**
+     * Requests an In-game -> Discord sync for a player whose groups changed, as reported by a
+     * {@link net.gabbage.discordRoleSync.permissions.GroupChangeSource}. Requests for the same player within
+     * {@code sync.group-change-debounce-millis} are coalesced into one sync, which reads the groups as they are
+     * when it runs.
+     */
+    public void requestIngameSync(UUID minecraftPlayerUUID) {
+        LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+        if (linkedPlayersManager == null || !linkedPlayersManager.isMcAccountLinked(minecraftPlayerUUID)) {
             return;
         }
-        // No need to check parsedMappings.isEmpty() here if we handle it inside the JDA callback with the counter
+        if (!pendingGroupChanges.add(minecraftPlayerUUID)) {
+            return; // Already scheduled
+        }
+        long delayTicks = Math.max(1L, configManager.getGroupChangeDebounceMillis() / 50L);
+        plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin, () -> {
+            pendingGroupChanges.remove(minecraftPlayerUUID);
+            syncIngameChange(minecraftPlayerUUID);
+        }, delayTicks);
+    }
 
-        Player onlinePlayer = offlinePlayer.isOnline() ? offlinePlayer.getPlayer() : null;
-        String worldName = (onlinePlayer != null && onlinePlayer.getWorld() != null) ? onlinePlayer.getWorld().getName() : null;
+    /**
+     * Applies only the In-game -> Discord mappings, against the cached member. Falls back to a full sync if the
+     * member is not cached.
+     */
+    private void syncIngameChange(UUID minecraftPlayerUUID) {
+        LinkedPlayersManager linkedPlayersManager = plugin.getLinkedPlayersManager();
+        DiscordManager discordManager = plugin.getDiscordManager();
+        if (linkedPlayersManager == null || discordManager == null || discordManager.getJda() == null || vaultPerms == null) {
+            return;
+        }
+        long discordSnowflake = linkedPlayersManager.getDiscordSnowflake(minecraftPlayerUUID);
+        MappingTable table = mappingTable;
+        if (discordSnowflake == LinkIndex.NO_LINK || table.getToDiscordRoleIds().length == 0) {
+            return;
+        }
+        String guildId = configManager.getDiscordGuildId();
+        Guild guild = guildId == null || guildId.isEmpty() ? null : discordManager.getJda().getGuildById(guildId);
+        if (guild == null) {
+            return;
+        }
+        Member cachedMember = guild.getMemberById(discordSnowflake);
+        if (cachedMember == null) {
+            synchronizeRoles(minecraftPlayerUUID, Long.toString(discordSnowflake), Priority.ADMIN);
+            return;
+        }
 
-        final AtomicInteger operationsCounter = new AtomicInteger(1); // Start at 1 for retrieveMemberById completion
+        OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(minecraftPlayerUUID);
+        String playerName = offlinePlayer.getName() != null ? offlinePlayer.getName() : minecraftPlayerUUID.toString();
+        if (acquireOrFollowUp(minecraftPlayerUUID, false, Priority.ADMIN, null) != null) {
+            // The running sync may have read the groups before this change, so a full sync follows it
+            plugin.getLogger().fine("Role synchronization for " + playerName + " is in progress. Group change will be picked up by the sync following it.");
+            return;
+        }
 
-        // Reset Discord Nickname as part of the unlink process
-        if (configManager.shouldSynchronizeDiscordNickname()) {
-            operationsCounter.incrementAndGet();
-            plugin.getDiscordManager().resetDiscordNickname(discordUserId,
-                () -> finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Reset Nickname Success", "Unlink"),
-                () -> finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Reset Nickname Failure", "Unlink")
-            );
-        }
-
-        // Clear Discord roles
-        if (plugin.getDiscordManager().getJda() != null) {
-            String guildId = configManager.getDiscordGuildId();
-            if (guildId != null && !guildId.isEmpty()) {
-                Guild guild = plugin.getDiscordManager().getJda().getGuildById(guildId);
-                if (guild != null) {
-                    operationsCounter.incrementAndGet(); // For the retrieveMemberById itself for roles
-                    guild.retrieveMemberById(discordUserId).queue(
-                        discordMember -> { // retrieveMemberById for roles success
-                            if (parsedMappings.isEmpty()) {
-                                plugin.getLogger().fine("No Discord mappings to process for unlink for " + playerName);
-                                finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "No Discord Mappings for Unlink", "Unlink"); // This handles the retrieveMemberById for roles
-                                return; // Exit if no mappings
-                            }
-                            for (RoleMapping mapping : parsedMappings) {
-                                if (!"INGAME_TO_DISCORD".equals(mapping.syncDirection()) && !"BOTH".equals(mapping.syncDirection())) {
-                                    continue;
-                                }
-                                Role discordRole = guild.getRoleById(mapping.discordRoleId());
-                                if (discordRole == null) {
-                                    plugin.getLogger().warning("On unlink, could not find Discord role ID: " + mapping.discordRoleId() + ". Skipping removal.");
-                                    continue;
-                                }
-                                if (discordMember.getRoles().contains(discordRole)) {
-                                    operationsCounter.incrementAndGet();
-                                    plugin.getDiscordManager().getDiscordTaskQueue().submit(() -> {
-                                        try {
-                                            guild.removeRoleFromMember(discordMember, discordRole).reason("Role Sync: User unlinked Minecraft account.").complete(true);
-                                            plugin.getLogger().fine("Removed Discord role '" + discordRole.getName() + "' from " + discordMember.getUser().getAsTag() + " on unlink.");
-                                            finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "RemoveDiscordRoleSuccess_" + discordRole.getName(), "Unlink");
-                                        } catch (Exception e) { // Catches JDA exceptions
-                                            plugin.getLogger().log(Level.WARNING, "Failed to remove Discord role '" + discordRole.getName() + "' from " + discordMember.getUser().getAsTag() + " on unlink: " + e.getMessage(), e);
-                                            finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "RemoveDiscordRoleFailure_" + discordRole.getName(), "Unlink");
-                                        }
-                                    });
-                                }
-                            }
-                            finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Discord Role Clearing Logic Complete (after processing mappings)", "Unlink"); // For retrieveMemberById for roles
-                        },
-                        failure -> {
-                            plugin.getLogger().warning("Could not retrieve Discord member " + discordUserId + " for clearing Discord roles on unlink: " + failure.getMessage());
-                            finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "RetrieveMemberFailure_DiscordRoles", "Unlink"); // For retrieveMemberById for roles
-                        }
-                    );
+        plugin.getLogger().fine("In-game groups of " + playerName + " changed. Synchronizing mapped Discord roles of " + cachedMember.getUser().getAsTag() + ".");
+        SyncRun run = new SyncRun(minecraftPlayerUUID, playerName, TYPE_GROUP_CHANGE, Priority.ADMIN, false);
+        run.finish(CompletableFuture.supplyAsync(() -> {
+            PermissionSnapshot permissions = PermissionSnapshot.capture(vaultPerms, offlinePlayer, configManager.shouldMatchAllGroups());
+            long[] groupBits = table.entryBitsForGroups(permissions.getGroupKeys());
+            // Only the in-game side is known to have changed, so BOTH mappings follow the groups
+            syncIngameToDiscord(table, groupBits, new long[groupBits.length], cachedMember, guild, playerName, run);
+            return run;
+        }, Runnable::run).thenCompose(SyncRun::allOperations));
+    }
+
+    /**
+     * Resets the nickname and removes the mapped Discord roles and in-game groups of a player who is being unlinked.
+     *
+     * @return Completes when every operation has, or at the deadline. Never completes exceptionally.
+     */
+    public CompletableFuture<SyncResult> clearRolesOnUnlink(UUID minecraftPlayerUUID, String discordUserId) {
+        OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(minecraftPlayerUUID);
+        String playerName = offlinePlayer.getName() != null ? offlinePlayer.getName() : minecraftPlayerUUID.toString();
+
+        FollowUp followUp = acquireOrFollowUp(minecraftPlayerUUID, false, Priority.LINK, discordUserId);
+        if (followUp != null) {
+            plugin.getLogger().info("A run for " + playerName + " (UUID: " + minecraftPlayerUUID + ") is in progress. Roles will be cleared once it has finished.");
+            return followUp.result;
+        }
+        plugin.getLogger().info("Starting role clearing for " + playerName + " (UUID: " + minecraftPlayerUUID + ", Discord ID: " + discordUserId + "). Processing lock acquired.");
+
+        MappingTable table = mappingTable;
+        SyncRun run = new SyncRun(minecraftPlayerUUID, playerName, TYPE_UNLINK, Priority.LINK, false);
+        CompletableFuture<Void> work = CompletableFuture.supplyAsync(() -> {
+            // Reset Discord Nickname as part of the unlink process
+            if (configManager.shouldSynchronizeDiscordNickname()) {
+                CompletableFuture<Boolean> nicknameReset = new CompletableFuture<>();
+                plugin.getDiscordManager().resetDiscordNickname(discordUserId, run.priority, () -> nicknameReset.complete(true), () -> nicknameReset.complete(false));
+                run.add("Reset Nickname", nicknameReset);
+            }
+
+            // Clear Discord roles
+            Guild guild = null;
+            if (plugin.getDiscordManager().getJda() != null) {
+                String guildId = configManager.getDiscordGuildId();
+                if (guildId != null && !guildId.isEmpty()) {
+                    guild = plugin.getDiscordManager().getJda().getGuildById(guildId);
+                    if (guild == null) {
+                        plugin.getLogger().warning("Discord Guild with ID " + guildId + " not found. Cannot clear Discord roles.");
+                    }
                 } else {
-                    plugin.getLogger().warning("Discord Guild with ID " + guildId + " not found. Cannot clear Discord roles.");
+                    plugin.getLogger().warning("Discord Guild ID not configured. Cannot clear Discord roles.");
                 }
             } else {
-                plugin.getLogger().warning("Discord Guild ID not configured. Cannot clear Discord roles.");
+                plugin.getLogger().warning("JDA not available. Cannot clear Discord roles for " + playerName);
             }
-        } else {
-            plugin.getLogger().warning("JDA not available. Cannot clear Discord roles for " + playerName);
-        }
-
-        // Clear In-Game groups
-        if (vaultPerms != null) {
-            if (parsedMappings.isEmpty() && operationsCounter.get() == 1) { // Only initial retrieveMemberById pending
-                 // No specific log here, covered by the final finalizePlayerProcessing
-            } else if (!parsedMappings.isEmpty()) {
-                 operationsCounter.incrementAndGet(); // Count the whole block of Vault operations as one
-                 plugin.getServer().getScheduler().runTask(plugin, () -> {
-                    int removedGroupsCount = 0;
-                    for (RoleMapping mapping : parsedMappings) {
-                        if ("DISCORD_TO_INGAME".equals(mapping.syncDirection()) || "BOTH".equals(mapping.syncDirection())) {
-                            String primaryGroup = vaultPerms.getPrimaryGroup(worldName, offlinePlayer);
-                            boolean playerHasIngameGroup = primaryGroup != null && primaryGroup.equalsIgnoreCase(mapping.ingameGroup());
-                            if (playerHasIngameGroup) {
-                                plugin.getLogger().fine("Attempting to remove in-game group '" + mapping.ingameGroup() + "' from " + playerName + " on unlink.");
-                                if (vaultPerms.playerRemoveGroup(null, offlinePlayer, mapping.ingameGroup())) {
-                                    plugin.getLogger().fine("Successfully removed in-game group '" + mapping.ingameGroup() + "' from " + playerName + " on unlink.");
-                                    removedGroupsCount++;
-                                } else {
-                                    plugin.getLogger().warning("Failed to remove in-game group '" + mapping.ingameGroup() + "' from " + playerName + " on unlink.");
-                                }
-                            }
-                        }
-                    }
-                    plugin.getLogger().fine("In-game group removal task completed for " + playerName + " on unlink. Removed " + removedGroupsCount + " groups.");
-                    finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Vault Group Clearing", "Unlink");
-                });
+            if (guild != null) {
+                run.add("Remove Discord Roles", clearDiscordRolesOnUnlink(table, guild, discordUserId, run.priority));
+            }
+
+            // Clear In-Game groups
+            if (vaultPerms == null) {
+                plugin.getLogger().warning("Vault permissions not available. Cannot clear in-game groups for " + playerName + " on unlink.");
+            } else if (!table.isEmpty()) {
+                run.add("Vault Group Clearing", CompletableFuture.supplyAsync(() -> clearIngameGroupsOnUnlink(table, offlinePlayer, playerName), mainThread));
+            }
+            return run;
+        }, Runnable::run).thenCompose(SyncRun::allOperations);
+        return run.finish(work);
+    }
+
+    private CompletableFuture<Boolean> clearDiscordRolesOnUnlink(MappingTable table, Guild guild, String discordUserId, Priority priority) {
+        return guild.retrieveMemberById(discordUserId).submit().handle((discordMember, failure) -> {
+            if (failure != null) {
+                plugin.getLogger().warning("Could not retrieve Discord member " + discordUserId + " for clearing Discord roles on unlink: " + unwrap(failure).getMessage());
+            }
+            return discordMember;
+        }).thenCompose(discordMember -> {
+            if (discordMember == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            if (table.isEmpty()) {
+                plugin.getLogger().fine("No Discord mappings to process for unlink for " + discordUserId);
+                return CompletableFuture.completedFuture(true);
+            }
+            long[] heldRoles = table.heldToDiscordRoleBits(discordMember);
+            long[] toDiscordRoleIds = table.getToDiscordRoleIds();
+            List<Role> rolesToRemove = new ArrayList<>();
+            for (int slot = MappingTable.nextSetBit(heldRoles, 0); slot >= 0; slot = MappingTable.nextSetBit(heldRoles, slot + 1)) {
+                long discordRoleId = toDiscordRoleIds[slot];
+                Role discordRole = table.resolveRole(guild, discordRoleId);
+                if (discordRole == null) {
+                    plugin.getLogger().warning("On unlink, could not find Discord role ID: " + discordRoleId + ". Skipping removal.");
+                    continue;
+                }
+                rolesToRemove.add(discordRole);
+            }
+            if (rolesToRemove.isEmpty()) {
+                return CompletableFuture.completedFuture(true);
+            }
+            // Removed in a single role update request
+            return submitRoleUpdate(new RoleUpdate(guild, discordMember, List.of(), rolesToRemove, "Role Sync: User unlinked Minecraft account."), priority);
+        });
+    }
+
+    /**
+     * Runs on the main thread.
+     *
+     * @return Whether every mapped group the player had was removed.
+     */
+    private boolean clearIngameGroupsOnUnlink(MappingTable table, OfflinePlayer offlinePlayer, String playerName) {
+        int removedGroupsCount = 0;
+        boolean allRemoved = true;
+        PermissionSnapshot permissions = PermissionSnapshot.capture(vaultPerms, offlinePlayer, configManager.shouldMatchAllGroups());
+        Set<String> handledGroups = new HashSet<>(); // Several mappings may share a group
+        for (MappingTable.Entry entry : table.getToIngameEntries()) {
+            RoleMapping mapping = entry.mapping();
+            boolean playerHasIngameGroup = permissions.isInGroup(entry);
+            if (playerHasIngameGroup && handledGroups.add(entry.groupKey())) {
+                plugin.getLogger().fine("Attempting to remove in-game group '" + mapping.ingameGroup() + "' from " + playerName + " on unlink.");
+                if (vaultPerms.playerRemoveGroup(null, offlinePlayer, mapping.ingameGroup())) {
+                    plugin.getLogger().fine("Successfully removed in-game group '" + mapping.ingameGroup() + "' from " + playerName + " on unlink.");
+                    removedGroupsCount++;
+                } else {
+                    plugin.getLogger().warning("Failed to remove in-game group '" + mapping.ingameGroup() + "' from " + playerName + " on unlink.");
+                    allRemoved = false;
+                }
             }
-        } else {
-            plugin.getLogger().warning("Vault permissions not available. Cannot clear in-game groups for " + playerName + " on unlink.");
         }
-        
-        // Final decrement for the initial setup of clearRolesOnUnlink
-        finalizePlayerProcessing(minecraftPlayerUUID, playerName, operationsCounter, "Main Unlink Logic Completion", "Unlink");
+        plugin.getLogger().fine("In-game group removal task completed for " + playerName + " on unlink. Removed " + removedGroupsCount + " groups.");
+        return allRemoved;
     }
 
     public List<RoleMapping> getParsedMappings() {
-        return new ArrayList<>(parsedMappings); // Return a copy to prevent external modification
+        return new ArrayList<>(mappingTable.getMappings()); // Return a copy to prevent external modification
     }
 }
@@ -0,0 +1,31 @@
+package net.gabbage.discordRoleSync.service;
+
+import java.util.Locale;
+
+public enum SyncDirection {
+    INGAME_TO_DISCORD,
+    DISCORD_TO_INGAME,
+    BOTH;
+
+    public boolean syncsToDiscord() {
+        return this != DISCORD_TO_INGAME;
+    }
+
+    public boolean syncsToIngame() {
+        return this != INGAME_TO_DISCORD;
+    }
+
+    /**
+     * @return The direction named by value (case-insensitive), or null if there is none.
+     */
+    public static SyncDirection parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
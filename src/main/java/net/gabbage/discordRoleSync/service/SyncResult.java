@@ -0,0 +1,48 @@
+package net.gabbage.discordRoleSync.service;
+
+import java.util.UUID;
+
+/**
+ * Outcome of one sync, unlink or targeted change of a player, as completed by the futures returned from
+ * {@link RoleSyncService}.
+ *
+ * @param operations       Number of Discord and Vault operations the run started.
+ * @param failedOperations Number of those operations that failed.
+ * @param message          Why the run failed or was not run, or null.
+ */
+public record SyncResult(UUID playerUUID, String type, Status status, int operations, int failedOperations, long durationMillis, String message) {
+
+    public enum Status {
+        /** Every operation succeeded, or none were needed. */
+        COMPLETED,
+        /** At least one operation failed, or the Discord member could not be retrieved. */
+        FAILED,
+        /** The deadline passed before every operation reported back. The player's lock was released anyway. */
+        TIMED_OUT,
+        /** Skipped because nothing changed since the player's last successful sync. */
+        UNCHANGED,
+        /** Not run, e.g. because there are no mappings or Discord is not available. */
+        NOT_RUN
+    }
+
+    static SyncResult notRun(UUID playerUUID, String type, Status status, String message) {
+        return new SyncResult(playerUUID, type, status, 0, 0, 0L, message);
+    }
+
+    /**
+     * @return Whether the player is in sync afterwards as far as this run knows: it completed or was unchanged.
+     */
+    public boolean isSuccess() {
+        return status == Status.COMPLETED || status == Status.UNCHANGED;
+    }
+
+    /**
+     * Syncs only start operations for changes that are needed, so for syncs this tells whether anything was actually
+     * changed. A completed sync that found everything in sync started no operations and reports false.
+     *
+     * @return Whether at least one of the run's operations succeeded.
+     */
+    public boolean madeChanges() {
+        return operations > failedOperations;
+    }
+}
@@ -0,0 +1,129 @@
+package net.gabbage.discordRoleSync.storage;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Fixed-width binary copy of linked_players.yml used to skip YAML parsing at startup.
+ * Layout: a header (magic, version, size and mtime of the YAML file it was built from, record count) followed by
+ * one 60-byte record per link: UUID most/least significant bits, the Discord snowflake as a long and the
+ * {@link LinkMetadata} fields. Files from an older version are treated as stale.
+ * The YAML file stays the source of truth; if its size or mtime no longer match the header the binary copy is
+ * considered stale and rebuilt from YAML.
+ */
+public class BinaryLinkSnapshot {
+
+    private static final int MAGIC = 0x44525331; // "DRS1"
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+    private static final int RECORD_BYTES = 8 + 8 + 8 + 8 + 8 + 8 + 4 + 8;
+
+    private final DiscordRoleSync plugin;
+    private final File snapshotFile;
+    private final File sourceFile; // The YAML snapshot this binary copy mirrors
+
+    public BinaryLinkSnapshot(DiscordRoleSync plugin, File snapshotFile, File sourceFile) {
+        this.plugin = plugin;
+        this.snapshotFile = snapshotFile;
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Streams all links from the memory-mapped snapshot.
+     * @return false if the snapshot is missing, stale or unreadable; nothing has been passed to onChange in that case.
+     */
+    public boolean load(LinkStore.ChangeSink onChange) {
+        if (!snapshotFile.exists() || !sourceFile.exists()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                return false;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != sourceFile.length() || buffer.getLong() != sourceFile.lastModified()) {
+                plugin.getLogger().info(snapshotFile.getName() + " is out of date with " + sourceFile.getName() + ". Rebuilding it.");
+                return false;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || fileSize != HEADER_BYTES + (long) count * RECORD_BYTES) {
+                plugin.getLogger().warning(snapshotFile.getName() + " is truncated or corrupt. Rebuilding it.");
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                long msb = buffer.getLong();
+                long lsb = buffer.getLong();
+                long discordId = buffer.getLong();
+                LinkMetadata metadata = new LinkMetadata(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getLong());
+                onChange.acceptLink(msb, lsb, discordId, metadata); // The snowflake stays a long all the way into the index
+            }
+            return true;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not read " + snapshotFile.getName() + ". Falling back to " + sourceFile.getName() + ".", e);
+            return false;
+        }
+    }
+
+    /**
+     * Rebuilds the binary snapshot from the links (link changes) just written to (or read from) the YAML file.
+     * Call this after the YAML file is in place, since its size and mtime are recorded in the header.
+     */
+    public void write(List<LinkStore.Change> links) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + links.size() * RECORD_BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceFile.length()).putLong(sourceFile.lastModified()).putInt(links.size());
+        for (LinkStore.Change link : links) {
+            long discordId = LinkIndex.parseDiscordId(link.discordId());
+            if (discordId < 0) {
+                // Only canonical numeric IDs fit the fixed-width format; keep loading from YAML instead
+                plugin.getLogger().warning("Discord ID '" + link.discordId() + "' cannot be stored in " + snapshotFile.getName() + ". Startup will keep using " + sourceFile.getName() + ".");
+                delete();
+                return;
+            }
+            LinkMetadata metadata = link.metadata();
+            buffer.putLong(link.mcUUID().getMostSignificantBits()).putLong(link.mcUUID().getLeastSignificantBits()).putLong(discordId)
+                    .putLong(metadata.linkedAt()).putLong(metadata.lastSyncAt()).putLong(metadata.stateFingerprint()).putInt(metadata.failureCount())
+                    .putLong(metadata.agreedState());
+        }
+        buffer.flip();
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not write " + snapshotFile.getName() + ".", e);
+            return;
+        }
+        try {
+            try {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not replace " + snapshotFile.getName() + ".", e);
+        }
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(snapshotFile.toPath());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not delete " + snapshotFile.getName() + ".", e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.gabbage.discordRoleSync.storage;
+
+import java.util.UUID;
+
+/**
+ * Forward-only, chunked walk over the links in a {@link LinkIndex}, used like a JDBC ResultSet:
+ * call {@link #next()} and read the current link through the getters.
+ * Links are copied out one chunk at a time, so no lock is held while the caller processes them and the full
+ * link set is never materialised. The walk is weakly consistent: links added during the walk may or may not
+ * be seen, and a link can be missed for this pass if others are removed behind the cursor.
+ * A cursor can be kept and resumed later, e.g. to spread a pass over several task runs.
+ */
+public class LinkCursor {
+
+    private final LinkIndex linkIndex;
+    private final long[] chunk; // (msb, lsb, discordId) triples
+    private int position; // Entry position in the index of the next chunk
+    private int chunkCount;
+    private int chunkOffset = -1;
+
+    LinkCursor(LinkIndex linkIndex, int chunkSize) {
+        this.linkIndex = linkIndex;
+        this.chunk = new long[Math.max(1, chunkSize) * 3];
+    }
+
+    /**
+     * Advances to the next link.
+     * @return false once every link has been visited.
+     */
+    public boolean next() {
+        if (chunkOffset + 1 < chunkCount) {
+            chunkOffset++;
+            return true;
+        }
+        chunkCount = linkIndex.copyRange(position, chunk);
+        position += chunkCount;
+        chunkOffset = chunkCount > 0 ? 0 : -1;
+        return chunkCount > 0;
+    }
+
+    public UUID getMcUUID() {
+        return new UUID(chunk[chunkOffset * 3], chunk[chunkOffset * 3 + 1]);
+    }
+
+    public long getDiscordSnowflake() {
+        return chunk[chunkOffset * 3 + 2];
+    }
+
+    public String getDiscordId() {
+        return Long.toString(getDiscordSnowflake());
+    }
+
+    /**
+     * @return How many links this cursor has fetched so far.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
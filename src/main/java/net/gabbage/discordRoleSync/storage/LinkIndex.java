@@ -0,0 +1,499 @@
+package net.gabbage.discordRoleSync.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bidirectional Minecraft UUID <-> Discord snowflake index without per-link objects.
+ * Links live in parallel primitive arrays (UUID msb, UUID lsb, snowflake, plus the {@link LinkMetadata} fields);
+ * two open-addressing int tables (linear probing, backward-shift deletion) map each side to its entry.
+ * That is roughly 70 bytes per link, and lookups only touch primitive arrays.
+ * Thread-safe: every write updates both directions under one write lock, and lookups are optimistic
+ * StampedLock reads that only fall back to the read lock if a write raced with them.
+ */
+public class LinkIndex {
+
+    public static final long NO_LINK = -1L;
+    private static final int MIN_TABLE_SIZE = 16; // Must be a power of two
+
+    @FunctionalInterface
+    public interface LinkVisitor {
+        void visit(long mostSigBits, long leastSigBits, long discordId);
+    }
+
+    // Dense entry storage; entries [0, size) are live
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private long[] discordIds;
+    private long[] linkedAt;
+    private long[] lastSyncAt;
+    private long[] stateFingerprints;
+    private int[] failureCounts;
+    private long[] agreedStates;
+    private int size;
+
+    // Open-addressing tables holding entry index + 1 (0 = empty slot)
+    private int[] byUuid;
+    private int[] byDiscordId;
+
+    private final StampedLock lock = new StampedLock();
+
+    public LinkIndex() {
+        clear();
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            mostSigBits = new long[MIN_TABLE_SIZE / 2];
+            leastSigBits = new long[MIN_TABLE_SIZE / 2];
+            discordIds = new long[MIN_TABLE_SIZE / 2];
+            linkedAt = new long[MIN_TABLE_SIZE / 2];
+            lastSyncAt = new long[MIN_TABLE_SIZE / 2];
+            stateFingerprints = new long[MIN_TABLE_SIZE / 2];
+            failureCounts = new int[MIN_TABLE_SIZE / 2];
+            agreedStates = new long[MIN_TABLE_SIZE / 2];
+            byUuid = new int[MIN_TABLE_SIZE];
+            byDiscordId = new int[MIN_TABLE_SIZE];
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int currentSize = size;
+        if (lock.validate(stamp)) {
+            return currentSize;
+        }
+        stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // The optimistic paths below may observe a half-finished write (a stale array, an index past the end).
+    // Any exception or failed validation just means "retry under the read lock"; nothing read is trusted before validate().
+
+    public long getDiscordId(long msb, long lsb) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                int entry = findByUuid(msb, lsb);
+                long discordId = entry < 0 ? NO_LINK : discordIds[entry];
+                if (lock.validate(stamp)) {
+                    return discordId;
+                }
+            } catch (RuntimeException ignored) {
+                // Raced with a writer
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            int entry = findByUuid(msb, lsb);
+            return entry < 0 ? NO_LINK : discordIds[entry];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean containsUuid(long msb, long lsb) {
+        return getDiscordId(msb, lsb) != NO_LINK;
+    }
+
+    public boolean containsDiscordId(long discordId) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                boolean found = findByDiscordId(discordId) >= 0;
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException ignored) {
+                // Raced with a writer
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return findByDiscordId(discordId) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The linked UUID, or null. Only the returned UUID is allocated.
+     */
+    public UUID getMcUUID(long discordId) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                int entry = findByDiscordId(discordId);
+                long msb = entry < 0 ? 0L : mostSigBits[entry];
+                long lsb = entry < 0 ? 0L : leastSigBits[entry];
+                if (lock.validate(stamp)) {
+                    return entry < 0 ? null : new UUID(msb, lsb);
+                }
+            } catch (RuntimeException ignored) {
+                // Raced with a writer
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            int entry = findByDiscordId(discordId);
+            return entry < 0 ? null : new UUID(mostSigBits[entry], leastSigBits[entry]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The metadata of the UUID's link, or null if it is not linked.
+     */
+    public LinkMetadata getMetadata(long msb, long lsb) {
+        long stamp = lock.readLock();
+        try {
+            int entry = findByUuid(msb, lsb);
+            return entry < 0 ? null : metadataAt(entry);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Replaces the metadata of an existing link.
+     * @return false if the UUID is not linked.
+     */
+    public boolean setMetadata(long msb, long lsb, LinkMetadata metadata) {
+        long stamp = lock.writeLock();
+        try {
+            int entry = findByUuid(msb, lsb);
+            if (entry < 0) {
+                return false;
+            }
+            setMetadataAt(entry, metadata);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records the outcome of a sync in place: on success the sync time, fingerprint and agreed state are stored and
+     * the failure count reset, on failure only the failure count is bumped.
+     * @return false if the UUID is not linked.
+     */
+    public boolean recordSync(long msb, long lsb, boolean success, long stateFingerprint, long agreedState, long time) {
+        long stamp = lock.writeLock();
+        try {
+            int entry = findByUuid(msb, lsb);
+            if (entry < 0) {
+                return false;
+            }
+            if (success) {
+                lastSyncAt[entry] = time;
+                stateFingerprints[entry] = stateFingerprint;
+                failureCounts[entry] = 0;
+                agreedStates[entry] = agreedState;
+            } else if (failureCounts[entry] < Integer.MAX_VALUE) {
+                failureCounts[entry]++;
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Links the UUID to the Discord ID, first removing any existing link on either side.
+     * Readers see either the old links or the new one, never one direction without the other.
+     */
+    public void put(long msb, long lsb, long discordId, LinkMetadata metadata) {
+        long stamp = lock.writeLock();
+        try {
+            int previousEntry = findByUuid(msb, lsb);
+            if (previousEntry >= 0) {
+                removeEntry(previousEntry);
+            }
+            int previousOwner = findByDiscordId(discordId);
+            if (previousOwner >= 0) {
+                removeEntry(previousOwner);
+            }
+            if (size == discordIds.length) {
+                grow();
+            }
+            int entry = size;
+            mostSigBits[entry] = msb;
+            leastSigBits[entry] = lsb;
+            discordIds[entry] = discordId;
+            setMetadataAt(entry, metadata);
+            insertSlot(byUuid, uuidHash(msb, lsb), entry);
+            insertSlot(byDiscordId, discordIdHash(discordId), entry);
+            size = entry + 1;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Applies a change read from a link store. Metadata updates for unlinked players are ignored.
+     * @return false if the change carried an invalid Discord ID and was skipped.
+     */
+    public boolean apply(LinkStore.Change change) {
+        long msb = change.mcUUID().getMostSignificantBits();
+        long lsb = change.mcUUID().getLeastSignificantBits();
+        if (change.isLink()) {
+            long discordId = parseDiscordId(change.discordId());
+            if (discordId == NO_LINK) {
+                return false;
+            }
+            put(msb, lsb, discordId, change.metadata());
+        } else if (change.isRemoval()) {
+            removeByUuid(msb, lsb);
+        } else {
+            setMetadata(msb, lsb, change.metadata());
+        }
+        return true;
+    }
+
+    /**
+     * Applies a link whose Discord ID is already a snowflake, as read from a binary store.
+     * @return false if the snowflake is negative and the link was skipped.
+     */
+    public boolean applyLink(long msb, long lsb, long discordId, LinkMetadata metadata) {
+        if (discordId < 0) {
+            return false;
+        }
+        put(msb, lsb, discordId, metadata);
+        return true;
+    }
+
+    /**
+     * @return The Discord ID that was linked, or {@link #NO_LINK} if the UUID was not linked.
+     */
+    public long removeByUuid(long msb, long lsb) {
+        long stamp = lock.writeLock();
+        try {
+            int entry = findByUuid(msb, lsb);
+            if (entry < 0) {
+                return NO_LINK;
+            }
+            long discordId = discordIds[entry];
+            removeEntry(entry);
+            return discordId;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Visits every link under the read lock, so writers wait until the walk is done. Keep the visitor cheap.
+     */
+    public void forEach(LinkVisitor visitor) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < size; i++) {
+                visitor.visit(mostSigBits[i], leastSigBits[i], discordIds[i]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return Every link with its metadata, as link changes that rebuild the current state when applied in order.
+     */
+    public List<LinkStore.Change> snapshot() {
+        long stamp = lock.readLock();
+        try {
+            List<LinkStore.Change> links = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                links.add(LinkStore.Change.link(new UUID(mostSigBits[i], leastSigBits[i]), Long.toString(discordIds[i]), metadataAt(i)));
+            }
+            return links;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies up to buffer.length / 3 links, starting at entry position 'from', into buffer as
+     * (msb, lsb, discordId) triples. The read lock is only held for the copy.
+     * @return The number of links copied; 0 once 'from' is past the end.
+     */
+    public int copyRange(int from, long[] buffer) {
+        long stamp = lock.readLock();
+        try {
+            int count = Math.max(0, Math.min(size - from, buffer.length / 3));
+            for (int i = 0; i < count; i++) {
+                int entry = from + i;
+                buffer[i * 3] = mostSigBits[entry];
+                buffer[i * 3 + 1] = leastSigBits[entry];
+                buffer[i * 3 + 2] = discordIds[entry];
+            }
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Parses a Discord ID into its snowflake value.
+     * @return The snowflake, or {@link #NO_LINK} if the string is not a canonical non-negative long.
+     */
+    public static long parseDiscordId(String discordId) {
+        if (discordId == null) {
+            return NO_LINK;
+        }
+        try {
+            long value = Long.parseLong(discordId);
+            // Reject forms like "+1" or "007" that would not survive a round trip through Long.toString
+            return value >= 0 && Long.toString(value).equals(discordId) ? value : NO_LINK;
+        } catch (NumberFormatException e) {
+            return NO_LINK;
+        }
+    }
+
+    // Probe loops are bounded by the table length so an optimistic read over a torn table still terminates
+    private int findByUuid(long msb, long lsb) {
+        int[] table = byUuid;
+        int mask = table.length - 1;
+        int slot = uuidHash(msb, lsb) & mask;
+        for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (mostSigBits[entry] == msb && leastSigBits[entry] == lsb) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int findByDiscordId(long discordId) {
+        int[] table = byDiscordId;
+        int mask = table.length - 1;
+        int slot = discordIdHash(discordId) & mask;
+        for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (discordIds[entry] == discordId) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void removeEntry(int entry) {
+        deleteSlot(byUuid, findSlot(byUuid, uuidHash(mostSigBits[entry], leastSigBits[entry]), entry), true);
+        deleteSlot(byDiscordId, findSlot(byDiscordId, discordIdHash(discordIds[entry]), entry), false);
+        int last = --size;
+        if (entry != last) {
+            // Keep entries dense by moving the last one into the hole and repointing its table slots
+            mostSigBits[entry] = mostSigBits[last];
+            leastSigBits[entry] = leastSigBits[last];
+            discordIds[entry] = discordIds[last];
+            linkedAt[entry] = linkedAt[last];
+            lastSyncAt[entry] = lastSyncAt[last];
+            stateFingerprints[entry] = stateFingerprints[last];
+            failureCounts[entry] = failureCounts[last];
+            agreedStates[entry] = agreedStates[last];
+            byUuid[findSlot(byUuid, uuidHash(mostSigBits[entry], leastSigBits[entry]), last)] = entry + 1;
+            byDiscordId[findSlot(byDiscordId, discordIdHash(discordIds[entry]), last)] = entry + 1;
+        }
+    }
+
+    private LinkMetadata metadataAt(int entry) {
+        return new LinkMetadata(linkedAt[entry], lastSyncAt[entry], stateFingerprints[entry], failureCounts[entry], agreedStates[entry]);
+    }
+
+    private void setMetadataAt(int entry, LinkMetadata metadata) {
+        linkedAt[entry] = metadata.linkedAt();
+        lastSyncAt[entry] = metadata.lastSyncAt();
+        stateFingerprints[entry] = metadata.stateFingerprint();
+        failureCounts[entry] = metadata.failureCount();
+        agreedStates[entry] = metadata.agreedState();
+    }
+
+    private static int findSlot(int[] table, int hash, int entry) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != entry + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static void insertSlot(int[] table, int hash, int entry) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry + 1;
+    }
+
+    // Backward-shift deletion: pull later entries of the probe run into the hole so lookups never need tombstones
+    private void deleteSlot(int[] table, int hole, boolean uuidTable) {
+        int mask = table.length - 1;
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int occupant = table[slot];
+            if (occupant == 0) {
+                break;
+            }
+            int entry = occupant - 1;
+            int home = (uuidTable ? uuidHash(mostSigBits[entry], leastSigBits[entry]) : discordIdHash(discordIds[entry])) & mask;
+            // The occupant may only move back if its home slot is not cyclically within (hole, slot]
+            boolean homeBetween = hole <= slot ? (home > hole && home <= slot) : (home > hole || home <= slot);
+            if (!homeBetween) {
+                table[hole] = occupant;
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void grow() {
+        int capacity = discordIds.length * 2;
+        mostSigBits = Arrays.copyOf(mostSigBits, capacity);
+        leastSigBits = Arrays.copyOf(leastSigBits, capacity);
+        discordIds = Arrays.copyOf(discordIds, capacity);
+        linkedAt = Arrays.copyOf(linkedAt, capacity);
+        lastSyncAt = Arrays.copyOf(lastSyncAt, capacity);
+        stateFingerprints = Arrays.copyOf(stateFingerprints, capacity);
+        failureCounts = Arrays.copyOf(failureCounts, capacity);
+        agreedStates = Arrays.copyOf(agreedStates, capacity);
+        // Tables stay at twice the entry capacity, i.e. at most half full
+        byUuid = new int[capacity * 2];
+        byDiscordId = new int[capacity * 2];
+        for (int i = 0; i < size; i++) {
+            insertSlot(byUuid, uuidHash(mostSigBits[i], leastSigBits[i]), i);
+            insertSlot(byDiscordId, discordIdHash(discordIds[i]), i);
+        }
+    }
+
+    private static int uuidHash(long msb, long lsb) {
+        return mix(msb ^ Long.rotateLeft(lsb, 32));
+    }
+
+    private static int discordIdHash(long discordId) {
+        return mix(discordId);
+    }
+
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+}
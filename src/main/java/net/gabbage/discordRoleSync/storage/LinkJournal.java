@@ -0,0 +1,187 @@
+package net.gabbage.discordRoleSync.storage;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of link mutations that sits on top of the linked_players.yml snapshot.
+ * Each mutation is a single checksummed line, so a write is one small sequential append instead of a full
+ * snapshot rewrite. On load the snapshot is read first and the journal is replayed over it; a torn or corrupt
+ * tail (e.g. from a crash mid-write) stops the replay at the last valid record.
+ * <p>
+ * Durability: {@link #append} forces each batch to the storage device before it returns true, so a batch reported as
+ * written survives a crash or power loss. Write-behind already groups changes into batches, so this costs one sync
+ * per batch rather than per change. Changes still waiting for their batch are not yet durable.
+ */
+public class LinkJournal {
+
+    private static final char ADD = 'A';
+    private static final char REMOVE = 'R';
+    private static final char METADATA = 'M';
+
+    private final DiscordRoleSync plugin;
+    private final File journalFile;
+    private FileChannel channel;
+    private int recordCount; // Records currently in the journal, used to decide when to compact
+
+    public LinkJournal(DiscordRoleSync plugin, File journalFile) {
+        this.plugin = plugin;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Replays every valid record in the journal, in order.
+     * @return true if the whole journal was valid, false if a corrupt tail was skipped (caller should compact).
+     */
+    public synchronized boolean replay(Consumer<LinkStore.Change> onChange) {
+        recordCount = 0;
+        if (!journalFile.exists()) {
+            return true;
+        }
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (!applyRecord(line, onChange)) {
+                    plugin.getLogger().warning("Corrupt record at line " + lineNumber + " of " + journalFile.getName() + ". Ignoring it and everything after it.");
+                    return false;
+                }
+                recordCount++;
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not read link journal " + journalFile + ". Links changed since the last snapshot may be missing.", e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean applyRecord(String line, Consumer<LinkStore.Change> onChange) {
+        int checksumStart = line.lastIndexOf(' ');
+        if (checksumStart <= 0) {
+            return false;
+        }
+        String body = line.substring(0, checksumStart);
+        try {
+            if (Long.parseLong(line.substring(checksumStart + 1), 16) != checksum(body)) {
+                return false;
+            }
+            String[] parts = body.split(" ");
+            if (parts[0].length() != 1) {
+                return false;
+            }
+            char type = parts[0].charAt(0);
+            // Add records written before link metadata existed have no link time
+            if (type == ADD && (parts.length == 3 || parts.length == 4)) {
+                LinkMetadata metadata = parts.length == 4 ? LinkMetadata.linkedAt(Long.parseLong(parts[3])) : LinkMetadata.NONE;
+                onChange.accept(LinkStore.Change.link(UUID.fromString(parts[1]), parts[2], metadata));
+                return true;
+            }
+            if (type == REMOVE && parts.length == 2) {
+                onChange.accept(LinkStore.Change.removal(UUID.fromString(parts[1])));
+                return true;
+            }
+            if (type == METADATA && (parts.length == 6 || parts.length == 7)) { // Records written before agreed state existed have 6 parts
+                long agreedState = parts.length == 7 ? Long.parseUnsignedLong(parts[6], 16) : 0L;
+                LinkMetadata metadata = new LinkMetadata(Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseUnsignedLong(parts[4], 16), Integer.parseInt(parts[5]), agreedState);
+                onChange.accept(LinkStore.Change.metadataUpdate(UUID.fromString(parts[1]), metadata));
+                return true;
+            }
+        } catch (IllegalArgumentException e) { // Also covers NumberFormatException
+            return false;
+        }
+        return false;
+    }
+
+    public static String record(LinkStore.Change change) {
+        if (change.isLink()) {
+            return ADD + " " + change.mcUUID() + " " + change.discordId() + " " + change.metadata().linkedAt();
+        }
+        if (change.isRemoval()) {
+            return REMOVE + " " + change.mcUUID();
+        }
+        LinkMetadata metadata = change.metadata();
+        return METADATA + " " + change.mcUUID() + " " + metadata.linkedAt() + " " + metadata.lastSyncAt() + " "
+                + Long.toHexString(metadata.stateFingerprint()) + " " + metadata.failureCount() + " " + Long.toHexString(metadata.agreedState());
+    }
+
+    /**
+     * Appends a batch of records (built with {@link #record}) in a single write and forces it to disk.
+     * @return false if the write failed. Part of the batch may have reached the journal; appending it again is safe,
+     * as replaying a record twice gives the same state.
+     */
+    public synchronized boolean append(List<String> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+        StringBuilder lines = new StringBuilder(records.size() * 64);
+        for (String body : records) {
+            lines.append(body).append(' ').append(Long.toHexString(checksum(body))).append('\n');
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false); // Like fdatasync: the data and the length needed to read it back, not timestamps
+            recordCount += records.size();
+            return true;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not append " + records.size() + " records to link journal " + journalFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Empties the journal. Only call this after a snapshot containing every journaled change has been written.
+     */
+    public synchronized void truncate() {
+        try {
+            close();
+            Files.deleteIfExists(journalFile.toPath());
+            recordCount = 0;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not truncate link journal " + journalFile, e);
+        }
+    }
+
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not close link journal " + journalFile, e);
+            }
+            channel = null;
+        }
+    }
+
+    private static long checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,16 @@
+package net.gabbage.discordRoleSync.storage;
+
+/**
+ * Sync bookkeeping kept next to each link. Times are epoch millis, 0 meaning never/unknown.
+ * stateFingerprint is a hash of the group/role state seen by the last successful sync, and failureCount the
+ * number of syncs that have failed in a row since then. agreedState records which BOTH mappings ended up held on
+ * both sides after the last successful sync (see {@code BothReconciliation}), 0 meaning unknown.
+ */
+public record LinkMetadata(long linkedAt, long lastSyncAt, long stateFingerprint, int failureCount, long agreedState) {
+
+    public static final LinkMetadata NONE = new LinkMetadata(0L, 0L, 0L, 0, 0L);
+
+    public static LinkMetadata linkedAt(long time) {
+        return new LinkMetadata(time, 0L, 0L, 0, 0L);
+    }
+}
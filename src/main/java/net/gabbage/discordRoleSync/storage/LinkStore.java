@@ -0,0 +1,82 @@
+package net.gabbage.discordRoleSync.storage;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Persistence backend for player links. {@link LinkedPlayersManager} keeps the links in memory and hands
+ * batches of changes to the store from its write-behind thread, so implementations only need to be safe for
+ * one caller at a time.
+ */
+public interface LinkStore {
+
+    /**
+     * A single mutation: a new link (discordId and its initial metadata), a removal (neither), or a metadata
+     * update for an existing link (metadata only). Use the factory methods rather than the constructor.
+     */
+    record Change(UUID mcUUID, String discordId, LinkMetadata metadata) {
+
+        public static Change link(UUID mcUUID, String discordId, LinkMetadata metadata) {
+            return new Change(mcUUID, discordId, metadata);
+        }
+
+        public static Change removal(UUID mcUUID) {
+            return new Change(mcUUID, null, null);
+        }
+
+        public static Change metadataUpdate(UUID mcUUID, LinkMetadata metadata) {
+            return new Change(mcUUID, null, metadata);
+        }
+
+        public boolean isLink() {
+            return discordId != null;
+        }
+
+        public boolean isRemoval() {
+            return discordId == null && metadata == null;
+        }
+
+        public boolean isMetadataUpdate() {
+            return discordId == null && metadata != null;
+        }
+    }
+
+    /**
+     * Receives the changes streamed by {@link #load(ChangeSink)}. Stores that hold Discord IDs as snowflakes pass
+     * links to {@link #acceptLink}, so a sink that indexes snowflakes needs no String round trip per link.
+     */
+    @FunctionalInterface
+    interface ChangeSink extends Consumer<Change> {
+
+        default void acceptLink(long mostSigBits, long leastSigBits, long discordId, LinkMetadata metadata) {
+            accept(Change.link(new UUID(mostSigBits, leastSigBits), Long.toString(discordId), metadata));
+        }
+    }
+
+    /**
+     * Streams the stored state into onChange as a sequence of changes. Applying them in order must rebuild the
+     * links, using the usual conflict rule (a Discord ID belongs to at most one player) and ignoring metadata
+     * updates for players that are not linked. Removals only come from stores that replay a change log.
+     */
+    void load(ChangeSink onChange);
+
+    /**
+     * Persists a batch of changes, in order, as one unit.
+     * @return false if nothing was written, in which case the caller keeps the batch and retries later.
+     */
+    boolean writeChanges(List<Change> changes);
+
+    /**
+     * Gives the store a chance to fold its change log into a snapshot. Called after load and after every batch.
+     */
+    default void compactIfNeeded() {
+    }
+
+    void close();
+
+    /**
+     * @return A short human-readable description for log messages.
+     */
+    String getDescription();
+}
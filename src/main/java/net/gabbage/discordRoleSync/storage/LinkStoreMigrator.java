@@ -0,0 +1,41 @@
+package net.gabbage.discordRoleSync.storage;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+
+import java.util.List;
+
+/**
+ * One-shot copy of every link from linked_players.yml (snapshot plus journal) into another store.
+ */
+public final class LinkStoreMigrator {
+
+    private LinkStoreMigrator() {
+    }
+
+    /**
+     * Copies all links from source into target in a single batch, which stores that write batches in one transaction
+     * (like {@link SqliteLinkStore}) apply completely or not at all. Retires the YAML files afterwards, so the
+     * migration only ever runs once. Nothing is retired if writing fails.
+     * @return The number of links migrated, or -1 if writing to the target failed.
+     */
+    public static int migrate(DiscordRoleSync plugin, YamlLinkStore source, LinkStore target) {
+        LinkIndex index = new LinkIndex(); // Applies the usual conflict rules while replaying the journal
+        source.load(change -> {
+            if (!index.apply(change)) {
+                plugin.getLogger().warning("Skipping link for " + change.mcUUID() + " during migration: '" + change.discordId() + "' is not a valid Discord ID.");
+            }
+        });
+
+        List<LinkStore.Change> changes = index.snapshot();
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        if (!target.writeChanges(changes)) {
+            plugin.getLogger().severe("Migration of " + changes.size() + " player links to " + target.getDescription() + " failed. linked_players.yml was left in place.");
+            return -1;
+        }
+        source.retire();
+        plugin.getLogger().info("Migrated " + changes.size() + " player links from " + source.getDescription() + " to " + target.getDescription() + ".");
+        return changes.size();
+    }
+}
@@ -1,127 +1,272 @@
 package net.gabbage.discordRoleSync.storage;
 
 import net.gabbage.discordRoleSync.DiscordRoleSync;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
 
 import java.io.File;
-import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 
 public class LinkedPlayersManager {
 
     private final DiscordRoleSync plugin;
-    private final File linkedPlayersFile;
-    private FileConfiguration linkedPlayersConfig;
-    private final Map<UUID, String> mcToDiscordLinks; // Minecraft UUID -> Discord ID
-    private final Map<String, UUID> discordToMcLinks; // Discord ID -> Minecraft UUID
+    private final LinkStore linkStore; // Persistence backend selected by storage.backend
+    private final WriteBehindPersister persister; // Writes pending changes off the caller's thread
+    private final Object ioLock = new Object(); // Serialises store reads and writes; always taken before 'this'
+    private volatile LinkIndex linkIndex = new LinkIndex(); // Minecraft UUID <-> Discord snowflake; reads are lock-free, writes hold 'this'
+    private List<LinkStore.Change> pendingChanges = new ArrayList<>(); // Changes not yet written, guarded by 'this'
+    private final Set<UUID> dirtyMetadata = ConcurrentHashMap.newKeySet(); // Players whose metadata changed since the last flush
 
     public LinkedPlayersManager(DiscordRoleSync plugin) {
         this.plugin = plugin;
-        this.linkedPlayersFile = new File(plugin.getDataFolder(), "linked_players.yml");
-        this.mcToDiscordLinks = new HashMap<>();
-        this.discordToMcLinks = new HashMap<>();
+        this.linkStore = createLinkStore();
+        this.persister = new WriteBehindPersister(plugin, this::flushPendingChanges, plugin.getConfigManager().getWriteBehindMillis());
         loadLinkedPlayers();
     }
 
-    public void loadLinkedPlayers() {
-        if (!linkedPlayersFile.exists()) {
+    private LinkStore createLinkStore() {
+        YamlLinkStore yamlStore = new YamlLinkStore(plugin, new File(plugin.getDataFolder(), "linked_players.yml"), () -> linkIndex.snapshot()); // Reads the field on each call, reloads swap the index
+        String backend = plugin.getConfigManager().getStorageBackend();
+        if ("sqlite".equalsIgnoreCase(backend)) {
+            SqliteLinkStore sqliteStore = new SqliteLinkStore(plugin, new File(plugin.getDataFolder(), "linked_players.db"));
             try {
-                // Ensure the plugin's data folder exists
-                if (!plugin.getDataFolder().exists()) {
-                    plugin.getDataFolder().mkdirs();
-                }
-                // Create an empty linked_players.yml if it doesn't exist
-                if (linkedPlayersFile.createNewFile()) {
-                    plugin.getLogger().info("Created new empty linked_players.yml file.");
+                sqliteStore.open();
+            } catch (SQLException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not open SQLite link storage. Falling back to linked_players.yml.", e);
+                sqliteStore.close();
+                return yamlStore;
+            }
+            // One-shot import of an existing linked_players.yml into a fresh database
+            if (new File(plugin.getDataFolder(), "linked_players.yml").exists() && sqliteStore.isEmpty()
+                    && LinkStoreMigrator.migrate(plugin, yamlStore, sqliteStore) < 0) {
+                // The import is one transaction, so the database is normally still empty and the next start tries again
+                if (sqliteStore.isEmpty()) {
+                    plugin.getLogger().severe("Using linked_players.yml until the migration succeeds. It will be attempted again on the next start.");
+                } else {
+                    plugin.getLogger().severe("Using linked_players.yml, but linked_players.db holds part of the failed import. Delete linked_players.db to have the migration attempted again on the next start.");
                 }
-            } catch (IOException e) {
-                plugin.getLogger().log(Level.SEVERE, "Could not create linked_players.yml file.", e);
+                sqliteStore.close();
+                return yamlStore;
             }
+            return sqliteStore;
+        } else if (!"yaml".equalsIgnoreCase(backend)) {
+            plugin.getLogger().warning("Unknown storage.backend '" + backend + "'. Using 'yaml'.");
         }
-        linkedPlayersConfig = YamlConfiguration.loadConfiguration(linkedPlayersFile);
-        mcToDiscordLinks.clear();
-        discordToMcLinks.clear();
-
-        ConfigurationSection linksSection = linkedPlayersConfig.getConfigurationSection("links");
-        if (linksSection != null) {
-            for (String mcUUIDStr : linksSection.getKeys(false)) {
-                try {
-                    UUID mcUUID = UUID.fromString(mcUUIDStr);
-                    String discordId = linksSection.getString(mcUUIDStr);
-                    if (discordId != null && !discordId.isEmpty()) {
-                        mcToDiscordLinks.put(mcUUID, discordId);
-                        discordToMcLinks.put(discordId, mcUUID);
+        return yamlStore;
+    }
+
+    public void loadLinkedPlayers() {
+        synchronized (ioLock) {
+            synchronized (this) {
+                pendingChanges = new ArrayList<>();
+                dirtyMetadata.clear();
+                LinkIndex loaded = new LinkIndex();
+                linkStore.load(new LinkStore.ChangeSink() {
+                    @Override
+                    public void accept(LinkStore.Change change) {
+                        if (!loaded.apply(change)) {
+                            plugin.getLogger().warning("Ignoring link for " + change.mcUUID() + ": '" + change.discordId() + "' is not a valid Discord ID.");
+                        }
                     }
-                } catch (IllegalArgumentException e) {
-                    plugin.getLogger().warning("Invalid Minecraft UUID found in linked_players.yml: " + mcUUIDStr);
-                }
+
+                    @Override
+                    public void acceptLink(long mostSigBits, long leastSigBits, long discordId, LinkMetadata metadata) {
+                        if (!loaded.applyLink(mostSigBits, leastSigBits, discordId, metadata)) {
+                            plugin.getLogger().warning("Ignoring link for " + new UUID(mostSigBits, leastSigBits) + ": '" + discordId + "' is not a valid Discord ID.");
+                        }
+                    }
+                });
+                linkIndex = loaded; // Readers switch over in one step and never see a half-loaded set
+                plugin.getLogger().info("Loaded " + loaded.size() + " player links from " + linkStore.getDescription() + ".");
             }
+            linkStore.compactIfNeeded();
         }
-        plugin.getLogger().info("Loaded " + mcToDiscordLinks.size() + " player links.");
     }
 
+    /**
+     * Writes any pending changes to the link store right away, on the calling thread.
+     */
     public void saveLinkedPlayers() {
-        // Create a fresh config to avoid keeping old removed entries if we only set new ones
-        linkedPlayersConfig = new YamlConfiguration();
-        ConfigurationSection linksSection = linkedPlayersConfig.createSection("links");
-        for (Map.Entry<UUID, String> entry : mcToDiscordLinks.entrySet()) {
-            linksSection.set(entry.getKey().toString(), entry.getValue());
-        }
-        try {
-            linkedPlayersConfig.save(linkedPlayersFile);
-        } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Could not save linked players to " + linkedPlayersFile, e);
+        flushPendingChanges();
+    }
+
+    // Normally runs on the persister thread: everything queued during the coalescing window goes out as one batch
+    private void flushPendingChanges() {
+        synchronized (ioLock) {
+            List<LinkStore.Change> batch;
+            synchronized (this) {
+                // Drain metadata in the same step, so a metadata record never precedes its link's add record
+                for (UUID mcUUID : dirtyMetadata) {
+                    dirtyMetadata.remove(mcUUID);
+                    LinkMetadata metadata = linkIndex.getMetadata(mcUUID.getMostSignificantBits(), mcUUID.getLeastSignificantBits());
+                    if (metadata != null) {
+                        pendingChanges.add(LinkStore.Change.metadataUpdate(mcUUID, metadata));
+                    }
+                }
+                if (pendingChanges.isEmpty()) {
+                    return;
+                }
+                batch = pendingChanges;
+                pendingChanges = new ArrayList<>();
+            }
+            if (!linkStore.writeChanges(batch)) {
+                synchronized (this) {
+                    batch.addAll(pendingChanges); // Keep ordering: the failed batch goes first on the retry
+                    pendingChanges = batch;
+                }
+                persister.markDirty();
+                return;
+            }
+            linkStore.compactIfNeeded();
         }
     }
 
-    public void addLink(UUID mcUUID, String discordId) {
-        // Remove any existing links for this mcUUID or discordId to prevent duplicates/conflicts
-        removeLinkByMcUUID(mcUUID);
-        removeLinkByDiscordId(discordId);
+    private Map<UUID, String> copyLinks() {
+        LinkIndex linkIndex = this.linkIndex;
+        Map<UUID, String> links = new HashMap<>(linkIndex.size() * 2);
+        linkIndex.forEach((msb, lsb, discordId) -> links.put(new UUID(msb, lsb), Long.toString(discordId)));
+        return links;
+    }
+
+    /**
+     * Flushes any pending changes and closes the link store. Called from onDisable.
+     */
+    public void shutdown() {
+        persister.shutdown();
+        synchronized (ioLock) {
+            linkStore.close();
+        }
+    }
 
-        mcToDiscordLinks.put(mcUUID, discordId);
-        discordToMcLinks.put(discordId, mcUUID);
-        saveLinkedPlayers();
+    public synchronized void addLink(UUID mcUUID, String discordId) {
+        if (!putLink(mcUUID, discordId)) {
+            return;
+        }
+        pendingChanges.add(LinkStore.Change.link(mcUUID, discordId, getLinkMetadata(mcUUID))); // Stores re-apply the conflict removal in putLink
+        persister.markDirty();
     }
 
-    public void removeLinkByMcUUID(UUID mcUUID) {
-        String discordId = mcToDiscordLinks.remove(mcUUID);
-        if (discordId != null) {
-            discordToMcLinks.remove(discordId);
-            saveLinkedPlayers();
+    public synchronized void removeLinkByMcUUID(UUID mcUUID) {
+        if (removeLinkInMemory(mcUUID)) {
+            pendingChanges.add(LinkStore.Change.removal(mcUUID));
+            persister.markDirty();
         }
     }
 
-    public void removeLinkByDiscordId(String discordId) {
-        UUID mcUUID = discordToMcLinks.remove(discordId);
+    public synchronized void removeLinkByDiscordId(String discordId) {
+        UUID mcUUID = getMcUUID(discordId);
         if (mcUUID != null) {
-            mcToDiscordLinks.remove(mcUUID);
-            saveLinkedPlayers();
+            removeLinkByMcUUID(mcUUID);
+        }
+    }
+
+    private boolean putLink(UUID mcUUID, String discordId) {
+        long snowflake = LinkIndex.parseDiscordId(discordId);
+        if (snowflake == LinkIndex.NO_LINK) {
+            plugin.getLogger().warning("Ignoring link for " + mcUUID + ": '" + discordId + "' is not a valid Discord ID.");
+            return false;
         }
+        // The index removes any existing links for this mcUUID or discordId to prevent duplicates/conflicts
+        linkIndex.put(mcUUID.getMostSignificantBits(), mcUUID.getLeastSignificantBits(), snowflake, LinkMetadata.linkedAt(System.currentTimeMillis()));
+        return true;
+    }
+
+    private boolean removeLinkInMemory(UUID mcUUID) {
+        return linkIndex.removeByUuid(mcUUID.getMostSignificantBits(), mcUUID.getLeastSignificantBits()) != LinkIndex.NO_LINK;
+    }
+
+    /**
+     * @return The linked Discord snowflake, or {@link LinkIndex#NO_LINK}. Does not allocate.
+     */
+    public long getDiscordSnowflake(UUID mcUUID) {
+        return linkIndex.getDiscordId(mcUUID.getMostSignificantBits(), mcUUID.getLeastSignificantBits());
     }
 
     public String getDiscordId(UUID mcUUID) {
-        return mcToDiscordLinks.get(mcUUID);
+        long discordId = getDiscordSnowflake(mcUUID);
+        return discordId == LinkIndex.NO_LINK ? null : Long.toString(discordId);
     }
 
     public UUID getMcUUID(String discordId) {
-        return discordToMcLinks.get(discordId);
+        long snowflake = LinkIndex.parseDiscordId(discordId);
+        return snowflake == LinkIndex.NO_LINK ? null : linkIndex.getMcUUID(snowflake);
+    }
+
+    /**
+     * @return The player linked to the Discord snowflake, or null. Does not parse or format the ID.
+     */
+    public UUID getMcUUID(long discordSnowflake) {
+        return linkIndex.getMcUUID(discordSnowflake);
     }
 
     public boolean isMcAccountLinked(UUID mcUUID) {
-        return mcToDiscordLinks.containsKey(mcUUID);
+        return linkIndex.containsUuid(mcUUID.getMostSignificantBits(), mcUUID.getLeastSignificantBits());
     }
 
     public boolean isDiscordAccountLinked(String discordId) {
-        return discordToMcLinks.containsKey(discordId);
+        long snowflake = LinkIndex.parseDiscordId(discordId);
+        return snowflake != LinkIndex.NO_LINK && linkIndex.containsDiscordId(snowflake);
     }
 
     public Map<UUID, String> getAllLinks() {
-        return new HashMap<>(mcToDiscordLinks); // Return a copy
+        return copyLinks(); // Return a copy
+    }
+
+    /**
+     * @return The sync metadata of the player's link, or null if the player is not linked.
+     */
+    public LinkMetadata getLinkMetadata(UUID mcUUID) {
+        return linkIndex.getMetadata(mcUUID.getMostSignificantBits(), mcUUID.getLeastSignificantBits());
+    }
+
+    /**
+     * Records a successful sync. Cheap enough for sync completion callbacks on any thread: it updates the
+     * in-memory link and marks it for the next write-behind flush.
+     */
+    public void recordSyncSuccess(UUID mcUUID, long stateFingerprint, long agreedState) {
+        recordSync(mcUUID, true, stateFingerprint, agreedState);
+    }
+
+    /**
+     * Records a failed sync, bumping the link's consecutive failure count.
+     */
+    public void recordSyncFailure(UUID mcUUID) {
+        recordSync(mcUUID, false, 0L, 0L);
+    }
+
+    private void recordSync(UUID mcUUID, boolean success, long stateFingerprint, long agreedState) {
+        if (linkIndex.recordSync(mcUUID.getMostSignificantBits(), mcUUID.getLeastSignificantBits(), success, stateFingerprint, agreedState, System.currentTimeMillis())) {
+            dirtyMetadata.add(mcUUID);
+            persister.markDirty();
+        }
+    }
+
+    public int getLinkCount() {
+        return linkIndex.size();
+    }
+
+    /**
+     * Opens a cursor that walks all links in chunks of chunkSize without copying the whole link set.
+     * See {@link LinkCursor} for its consistency guarantees.
+     */
+    public LinkCursor openLinkCursor(int chunkSize) {
+        return new LinkCursor(linkIndex, chunkSize);
+    }
+
+    /**
+     * Calls consumer for every link, fetching them in chunks of chunkSize. No lock is held while consumer runs.
+     */
+    public void forEachLink(int chunkSize, BiConsumer<UUID, String> consumer) {
+        LinkCursor cursor = openLinkCursor(chunkSize);
+        while (cursor.next()) {
+            consumer.accept(cursor.getMcUUID(), cursor.getDiscordId());
+        }
     }
 }
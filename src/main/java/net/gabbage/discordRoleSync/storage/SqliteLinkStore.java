@@ -0,0 +1,209 @@
+package net.gabbage.discordRoleSync.storage;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Stores links in an embedded SQLite database (linked_players.db), indexed by both Minecraft UUID and Discord ID.
+ * Uses the SQLite JDBC driver that ships with Spigot/Paper, so no extra dependency is shaded into the plugin.
+ */
+public class SqliteLinkStore implements LinkStore {
+
+    private final DiscordRoleSync plugin;
+    private final File databaseFile;
+    private Connection connection;
+
+    public SqliteLinkStore(DiscordRoleSync plugin, File databaseFile) {
+        this.plugin = plugin;
+        this.databaseFile = databaseFile;
+    }
+
+    /**
+     * Opens the database and creates the schema if needed.
+     * @throws SQLException if the driver is missing or the database cannot be opened.
+     */
+    public synchronized void open() throws SQLException {
+        try {
+            Class.forName("org.sqlite.JDBC"); // Make sure the server-provided driver is registered
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite JDBC driver not found on this server.", e);
+        }
+        if (!databaseFile.getParentFile().exists()) {
+            databaseFile.getParentFile().mkdirs();
+        }
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("CREATE TABLE IF NOT EXISTS links (mc_uuid TEXT PRIMARY KEY NOT NULL, discord_id TEXT NOT NULL)");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_links_discord_id ON links (discord_id)");
+            addMetadataColumns(statement);
+        }
+    }
+
+    // Databases created before link metadata existed only have the two link columns
+    private void addMetadataColumns(Statement statement) throws SQLException {
+        Set<String> columns = new HashSet<>();
+        try (ResultSet resultSet = statement.executeQuery("PRAGMA table_info(links)")) {
+            while (resultSet.next()) {
+                columns.add(resultSet.getString("name"));
+            }
+        }
+        for (String column : new String[]{"linked_at", "last_sync_at", "state_fingerprint", "failure_count", "agreed_state"}) {
+            if (!columns.contains(column)) {
+                statement.execute("ALTER TABLE links ADD COLUMN " + column + " INTEGER NOT NULL DEFAULT 0");
+            }
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT 1 FROM links LIMIT 1")) {
+            return !resultSet.next();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not query " + databaseFile.getName(), e);
+            return false; // Don't risk migrating over data we could not read
+        }
+    }
+
+    @Override
+    public synchronized void load(ChangeSink onChange) {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT mc_uuid, discord_id, linked_at, last_sync_at, state_fingerprint, failure_count, agreed_state FROM links")) {
+            while (resultSet.next()) {
+                String mcUUIDStr = resultSet.getString(1);
+                try {
+                    LinkMetadata metadata = new LinkMetadata(resultSet.getLong(3), resultSet.getLong(4), resultSet.getLong(5), resultSet.getInt(6), resultSet.getLong(7));
+                    onChange.accept(Change.link(UUID.fromString(mcUUIDStr), resultSet.getString(2), metadata));
+                } catch (IllegalArgumentException e) {
+                    plugin.getLogger().warning("Invalid Minecraft UUID found in " + databaseFile.getName() + ": " + mcUUIDStr);
+                }
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load links from " + databaseFile.getName(), e);
+        }
+    }
+
+    @Override
+    public synchronized boolean writeChanges(List<Change> changes) {
+        if (changes.isEmpty()) {
+            return true;
+        }
+        // Collapse the batch to its final state first, applying the same "one player per Discord ID" rule as
+        // LinkedPlayersManager, so each statement can be sent as a single JDBC batch regardless of ordering.
+        Map<UUID, Change> finalState = new LinkedHashMap<>(); // Link or removal per player touched by the batch
+        Map<UUID, LinkMetadata> metadataUpdates = new LinkedHashMap<>(); // For links the batch did not (re)create
+        Map<String, UUID> claimedDiscordIds = new HashMap<>();
+        for (Change change : changes) {
+            if (change.isMetadataUpdate()) {
+                Change current = finalState.get(change.mcUUID());
+                if (current == null) {
+                    metadataUpdates.put(change.mcUUID(), change.metadata());
+                } else if (current.isLink()) {
+                    finalState.put(change.mcUUID(), Change.link(change.mcUUID(), current.discordId(), change.metadata()));
+                }
+                continue;
+            }
+            Change previous = finalState.get(change.mcUUID());
+            if (previous != null && previous.isLink()) {
+                claimedDiscordIds.remove(previous.discordId());
+            }
+            finalState.put(change.mcUUID(), change);
+            metadataUpdates.remove(change.mcUUID());
+            if (change.isLink()) {
+                UUID previousOwner = claimedDiscordIds.put(change.discordId(), change.mcUUID());
+                if (previousOwner != null && !previousOwner.equals(change.mcUUID())) {
+                    finalState.put(previousOwner, Change.removal(previousOwner));
+                    metadataUpdates.remove(previousOwner);
+                }
+            }
+        }
+
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement deleteByUUID = connection.prepareStatement("DELETE FROM links WHERE mc_uuid = ?");
+                 PreparedStatement deleteByDiscordId = connection.prepareStatement("DELETE FROM links WHERE discord_id = ?");
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO links (mc_uuid, discord_id, linked_at, last_sync_at, state_fingerprint, failure_count, agreed_state) VALUES (?, ?, ?, ?, ?, ?, ?)");
+                 PreparedStatement updateMetadata = connection.prepareStatement("UPDATE links SET linked_at = ?, last_sync_at = ?, state_fingerprint = ?, failure_count = ?, agreed_state = ? WHERE mc_uuid = ?")) {
+                for (Change change : finalState.values()) {
+                    deleteByUUID.setString(1, change.mcUUID().toString());
+                    deleteByUUID.addBatch();
+                    if (change.isLink()) {
+                        // Frees the Discord ID if it still belongs to a player this batch didn't touch
+                        deleteByDiscordId.setString(1, change.discordId());
+                        deleteByDiscordId.addBatch();
+                        insert.setString(1, change.mcUUID().toString());
+                        insert.setString(2, change.discordId());
+                        setMetadata(insert, 3, change.metadata());
+                        insert.addBatch();
+                    }
+                }
+                for (Map.Entry<UUID, LinkMetadata> entry : metadataUpdates.entrySet()) {
+                    setMetadata(updateMetadata, 1, entry.getValue());
+                    updateMetadata.setString(6, entry.getKey().toString());
+                    updateMetadata.addBatch();
+                }
+                deleteByUUID.executeBatch();
+                deleteByDiscordId.executeBatch();
+                insert.executeBatch();
+                updateMetadata.executeBatch();
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not write " + changes.size() + " link changes to " + databaseFile.getName() + ". Rolling back.", e);
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                plugin.getLogger().log(Level.SEVERE, "Rollback failed for " + databaseFile.getName(), rollbackException);
+            }
+            return false;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {
+                // Connection is unusable; the next write will report the error
+            }
+        }
+    }
+
+    private static void setMetadata(PreparedStatement statement, int firstIndex, LinkMetadata metadata) throws SQLException {
+        statement.setLong(firstIndex, metadata.linkedAt());
+        statement.setLong(firstIndex + 1, metadata.lastSyncAt());
+        statement.setLong(firstIndex + 2, metadata.stateFingerprint());
+        statement.setInt(firstIndex + 3, metadata.failureCount());
+        statement.setLong(firstIndex + 4, metadata.agreedState());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not close " + databaseFile.getName(), e);
+            }
+            connection = null;
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "SQLite (" + databaseFile.getName() + ")";
+    }
+}
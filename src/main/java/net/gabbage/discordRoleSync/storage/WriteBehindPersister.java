@@ -0,0 +1,72 @@
+package net.gabbage.discordRoleSync.storage;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a store's flush action on a dedicated background thread, at most once per coalescing window.
+ * Callers only mark the store dirty; any number of mutations inside the window end up in a single flush,
+ * which keeps disk I/O off the server main thread and the JDA event threads.
+ */
+public class WriteBehindPersister {
+
+    private final DiscordRoleSync plugin;
+    private final Runnable flushAction;
+    private final long windowMillis;
+    private final ScheduledExecutorService executorService;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    public WriteBehindPersister(DiscordRoleSync plugin, Runnable flushAction, long windowMillis) {
+        this.plugin = plugin;
+        this.flushAction = flushAction;
+        this.windowMillis = windowMillis;
+        this.executorService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DiscordRoleSync-LinkPersister");
+            t.setDaemon(true); // Shutdown flushes explicitly, so don't hold the JVM open
+            return t;
+        });
+    }
+
+    public void markDirty() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (executorService.isShutdown()) {
+                flushScheduled.set(false);
+                plugin.getLogger().warning("Link persister is shut down. Change will be written by the final flush or the next save.");
+                return;
+            }
+            executorService.schedule(this::runFlush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runFlush() {
+        // Clear the flag before flushing so a mutation made during the flush schedules another one
+        flushScheduled.set(false);
+        try {
+            flushAction.run();
+        } catch (Exception e) {
+            plugin.getLogger().severe("Error flushing linked players to disk: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the background thread and runs one final flush on the calling thread.
+     */
+    public void shutdown() {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Link persister did not finish its pending flush in 10 seconds. Forcing shutdown...");
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException ie) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        runFlush();
+    }
+}
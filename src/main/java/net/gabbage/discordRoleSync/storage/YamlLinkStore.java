@@ -0,0 +1,206 @@
+package net.gabbage.discordRoleSync.storage;
+
+import net.gabbage.discordRoleSync.DiscordRoleSync;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * The original linked_players.yml format: a YAML snapshot plus the append-only {@link LinkJournal}.
+ * Links stay in the 'links' section as before; link metadata goes into a separate 'metadata' section.
+ */
+public class YamlLinkStore implements LinkStore {
+
+    private final DiscordRoleSync plugin;
+    private final File linkedPlayersFile;
+    private final LinkJournal linkJournal; // Append-only log of mutations since the last snapshot
+    private final BinaryLinkSnapshot binarySnapshot; // Fast-loading copy of linked_players.yml, null if disabled
+    private final Supplier<List<Change>> currentLinks; // Used to build snapshots when compacting
+    private boolean journalCorrupt; // Set when load skipped a torn tail, forcing a compaction
+
+    public YamlLinkStore(DiscordRoleSync plugin, File linkedPlayersFile, Supplier<List<Change>> currentLinks) {
+        this.plugin = plugin;
+        this.linkedPlayersFile = linkedPlayersFile;
+        this.linkJournal = new LinkJournal(plugin, new File(linkedPlayersFile.getParentFile(), "linked_players.journal"));
+        this.currentLinks = currentLinks;
+        this.binarySnapshot = plugin.getConfigManager().isBinarySnapshotEnabled()
+                ? new BinaryLinkSnapshot(plugin, new File(linkedPlayersFile.getParentFile(), "linked_players.bin"), linkedPlayersFile)
+                : null;
+    }
+
+    @Override
+    public synchronized void load(ChangeSink onChange) {
+        if (!linkedPlayersFile.exists()) {
+            try {
+                // Ensure the plugin's data folder exists
+                if (!plugin.getDataFolder().exists()) {
+                    plugin.getDataFolder().mkdirs();
+                }
+                // Create an empty linked_players.yml if it doesn't exist
+                if (linkedPlayersFile.createNewFile()) {
+                    plugin.getLogger().info("Created new empty linked_players.yml file.");
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not create linked_players.yml file.", e);
+            }
+        }
+        if (binarySnapshot == null || !binarySnapshot.load(onChange)) {
+            loadYamlSnapshot(onChange);
+        }
+
+        // Replay mutations made since the snapshot was written
+        journalCorrupt = !linkJournal.replay(onChange);
+        if (linkJournal.getRecordCount() > 0) {
+            plugin.getLogger().info("Replayed " + linkJournal.getRecordCount() + " link changes from linked_players.journal.");
+        }
+    }
+
+    private void loadYamlSnapshot(Consumer<Change> onChange) {
+        FileConfiguration linkedPlayersConfig = YamlConfiguration.loadConfiguration(linkedPlayersFile);
+        List<Change> snapshotLinks = new ArrayList<>(); // Kept to rebuild the binary snapshot
+
+        ConfigurationSection linksSection = linkedPlayersConfig.getConfigurationSection("links");
+        ConfigurationSection metadataSection = linkedPlayersConfig.getConfigurationSection("metadata");
+        if (linksSection != null) {
+            for (String mcUUIDStr : linksSection.getKeys(false)) {
+                try {
+                    UUID mcUUID = UUID.fromString(mcUUIDStr);
+                    String discordId = linksSection.getString(mcUUIDStr);
+                    if (discordId != null && !discordId.isEmpty()) {
+                        Change link = Change.link(mcUUID, discordId, readMetadata(metadataSection, mcUUIDStr));
+                        onChange.accept(link);
+                        snapshotLinks.add(link);
+                    }
+                } catch (IllegalArgumentException e) {
+                    plugin.getLogger().warning("Invalid Minecraft UUID found in linked_players.yml: " + mcUUIDStr);
+                }
+            }
+        }
+        if (binarySnapshot != null) {
+            binarySnapshot.write(snapshotLinks); // Next startup can skip the YAML parse
+        }
+    }
+
+    private LinkMetadata readMetadata(ConfigurationSection metadataSection, String mcUUIDStr) {
+        ConfigurationSection entry = metadataSection != null ? metadataSection.getConfigurationSection(mcUUIDStr) : null;
+        if (entry == null) {
+            return LinkMetadata.NONE;
+        }
+        try {
+            return new LinkMetadata(entry.getLong("linked-at"), entry.getLong("last-sync-at"),
+                    Long.parseUnsignedLong(entry.getString("state-fingerprint", "0"), 16), entry.getInt("failures"),
+                    Long.parseUnsignedLong(entry.getString("agreed-state", "0"), 16));
+        } catch (NumberFormatException e) {
+            plugin.getLogger().warning("Invalid link metadata in linked_players.yml for " + mcUUIDStr + ". Ignoring it.");
+            return LinkMetadata.NONE;
+        }
+    }
+
+    @Override
+    public synchronized boolean writeChanges(List<Change> changes) {
+        List<String> records = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            records.add(LinkJournal.record(change));
+        }
+        return linkJournal.append(records);
+    }
+
+    @Override
+    public synchronized void compactIfNeeded() {
+        if (journalCorrupt || linkJournal.getRecordCount() >= plugin.getConfigManager().getJournalCompactThreshold()) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes a full snapshot of all links (temp file plus atomic rename) and empties the journal.
+     * The snapshot is taken after everything journaled so far was applied in memory, so it always contains the
+     * journal. A crash between the two steps only means the journal is replayed over a snapshot that already
+     * contains it, which is harmless.
+     */
+    public synchronized void compact() {
+        if (writeSnapshot(currentLinks.get())) {
+            linkJournal.truncate();
+            journalCorrupt = false;
+        }
+    }
+
+    private boolean writeSnapshot(List<Change> links) {
+        if (!writeYamlSnapshot(links)) {
+            return false;
+        }
+        if (binarySnapshot != null) {
+            binarySnapshot.write(links);
+        }
+        return true;
+    }
+
+    private boolean writeYamlSnapshot(List<Change> links) {
+        YamlConfiguration snapshot = new YamlConfiguration();
+        ConfigurationSection linksSection = snapshot.createSection("links");
+        ConfigurationSection metadataSection = snapshot.createSection("metadata");
+        for (Change link : links) {
+            String mcUUIDStr = link.mcUUID().toString();
+            linksSection.set(mcUUIDStr, link.discordId());
+            LinkMetadata metadata = link.metadata();
+            if (!LinkMetadata.NONE.equals(metadata)) {
+                ConfigurationSection entry = metadataSection.createSection(mcUUIDStr);
+                entry.set("linked-at", metadata.linkedAt());
+                entry.set("last-sync-at", metadata.lastSyncAt());
+                entry.set("state-fingerprint", Long.toHexString(metadata.stateFingerprint()));
+                entry.set("failures", metadata.failureCount());
+                entry.set("agreed-state", Long.toHexString(metadata.agreedState()));
+            }
+        }
+        File tempFile = new File(linkedPlayersFile.getPath() + ".tmp");
+        try {
+            snapshot.save(tempFile);
+            try {
+                Files.move(tempFile.toPath(), linkedPlayersFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), linkedPlayersFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not save linked players to " + linkedPlayersFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Moves linked_players.yml and its journal aside after their contents were migrated to another store.
+     */
+    public synchronized void retire() {
+        linkJournal.close();
+        if (binarySnapshot != null) {
+            binarySnapshot.delete();
+        }
+        for (File file : new File[]{linkedPlayersFile, new File(linkedPlayersFile.getParentFile(), "linked_players.journal")}) {
+            if (file.exists() && !file.renameTo(new File(file.getPath() + ".migrated"))) {
+                plugin.getLogger().warning("Could not rename " + file.getName() + " after migration. It will be ignored while the current storage backend is in use.");
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        linkJournal.close();
+    }
+
+    @Override
+    public String getDescription() {
+        return "YAML (" + linkedPlayersFile.getName() + ")";
+    }
+}
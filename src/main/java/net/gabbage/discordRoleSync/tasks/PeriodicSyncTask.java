@@ -1,50 +1,249 @@
 package net.gabbage.discordRoleSync.tasks;
 
+import net.dv8tion.jda.api.entities.Member;
 import net.gabbage.discordRoleSync.DiscordRoleSync;
+import net.gabbage.discordRoleSync.managers.DiscordManager;
+import net.gabbage.discordRoleSync.storage.LinkCursor;
 import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
 import net.gabbage.discordRoleSync.service.RoleSyncService;
+import net.gabbage.discordRoleSync.service.SyncResult;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue;
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue.Priority;
 import org.bukkit.scheduler.BukkitRunnable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Walks every link once per {@code sync.interval-minutes} and synchronizes those its {@link SyncTierPolicy} says are
+ * due: online players every pass, recently active ones less often and dormant ones in a slow sweep. Rather than
+ * walking all links at once, each pass is spread evenly over the interval: the task runs every
+ * {@link #SLICE_PERIOD_TICKS} and walks the slice of links that is due by then, starting syncs as limited by a token
+ * bucket of {@code sync.syncs-per-second} with room for {@code sync.sync-burst}. A pass the bucket cannot fit into
+ * the interval simply runs over, and the next pass starts when it is done. The task also backs off while the
+ * Discord queue is more than half full, leaving the rest for changes made by players.
+ */
 public class PeriodicSyncTask extends BukkitRunnable {
 
+    public static final long SLICE_PERIOD_TICKS = 20L; // The task runs once a second
+    private static final long SLICE_PERIOD_MILLIS = SLICE_PERIOD_TICKS * 50L;
+    private static final int CHUNK_SIZE = 256; // Links copied out of the index per step
+    private static final int MEMBER_BATCH_SIZE = 100; // Links whose Discord members are fetched together
+    private static final int DISCORD_REQUESTS_PER_SYNC = 2; // At most a role update and a nickname change
+
     private final DiscordRoleSync plugin;
     private final LinkedPlayersManager linkedPlayersManager;
     private final RoleSyncService roleSyncService;
+    private final long intervalMillis;
+    private final double syncsPerSecond; // 0 for no limit
+    private final double burst;
+    private final SyncTierPolicy tierPolicy;
+    private final AtomicBoolean running = new AtomicBoolean(); // Async timer runs may overlap while members are fetched
+
+    // Pass state, only used by the run holding running
+    private LinkCursor cursor; // Null between passes
+    private long passStartMillis;
+    private long nextPassMillis;
+    private long passNumber; // Counts up by one per pass, starting from the wall clock so tier sweeps continue across restarts
+    private int passLinkCount;
+    private int passWalked;
+    private int passStarted;
+    private final int[] passTierCounts = new int[SyncTierPolicy.Tier.values().length];
+    private int passStartFailures;
+    private int passBackedOffSlices;
+    private List<CompletableFuture<SyncResult>> passResults;
+    private double tokens;
+    private long lastRefillNanos;
 
     public PeriodicSyncTask(DiscordRoleSync plugin) {
         this.plugin = plugin;
         this.linkedPlayersManager = plugin.getLinkedPlayersManager();
         this.roleSyncService = plugin.getRoleSyncService();
+        this.intervalMillis = Math.max(SLICE_PERIOD_MILLIS, plugin.getConfigManager().getSyncInterval() * 60_000L);
+        this.syncsPerSecond = plugin.getConfigManager().getSyncsPerSecond();
+        this.burst = Math.max(1.0, plugin.getConfigManager().getSyncBurst());
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+        this.tierPolicy = new SyncTierPolicy(plugin.getConfigManager(), intervalMillis);
+        this.passNumber = System.currentTimeMillis() / intervalMillis;
     }
 
     @Override
     public void run() {
-        Map<UUID, String> allLinks = linkedPlayersManager.getAllLinks();
+        if (!running.compareAndSet(false, true)) {
+            return; // The previous slice is still starting its syncs
+        }
+        try {
+            runSlice();
+        } finally {
+            running.set(false);
+        }
+    }
 
-        if (allLinks.isEmpty()) {
-            // No linked players, so nothing to do. Silently return.
-            return;
+    private void runSlice() {
+        long now = System.currentTimeMillis();
+        int budget = refillTokens();
+        int headroom = discordQueueHeadroom();
+        if (headroom < budget) {
+            budget = headroom;
+            if (cursor != null) {
+                passBackedOffSlices++;
+            }
+        }
+        if (cursor == null) {
+            if (now < nextPassMillis) {
+                return;
+            }
+            if (linkedPlayersManager.getLinkCount() == 0) {
+                // No linked players, so nothing to do. Silently return.
+                return;
+            }
+            startPass(now);
         }
 
-        int successCount = 0;
-        int failCount = 0;
+        // Links due by the end of this slice if the pass is spread evenly over the interval
+        long elapsed = now - passStartMillis;
+        long due = elapsed + SLICE_PERIOD_MILLIS >= intervalMillis
+                ? Long.MAX_VALUE // Catch up with links added during the pass
+                : (long) Math.ceil(passLinkCount * (double) (elapsed + SLICE_PERIOD_MILLIS) / intervalMillis);
+        long walkLimit = due - passWalked;
+
+        List<UUID> batchUUIDs = new ArrayList<>(MEMBER_BATCH_SIZE);
+        List<Long> batchSnowflakes = new ArrayList<>(MEMBER_BATCH_SIZE);
+        boolean exhausted = false;
+        int walked = 0;
+        int taken = 0;
+        while (walked < walkLimit && taken < budget) {
+            if (!cursor.next()) {
+                exhausted = true;
+                break;
+            }
+            walked++;
+            UUID mcUUID = cursor.getMcUUID();
+            SyncTierPolicy.Tier tier = tierPolicy.dueTier(mcUUID, linkedPlayersManager.getLinkMetadata(mcUUID), passNumber, now);
+            if (tier == null) {
+                continue; // Not due in this pass
+            }
+            passTierCounts[tier.ordinal()]++;
+            batchUUIDs.add(mcUUID);
+            batchSnowflakes.add(cursor.getDiscordSnowflake());
+            taken++;
+            if (batchUUIDs.size() == MEMBER_BATCH_SIZE) {
+                syncBatch(batchUUIDs, batchSnowflakes);
+            }
+        }
+        if (!batchUUIDs.isEmpty()) {
+            syncBatch(batchUUIDs, batchSnowflakes);
+        }
+        passWalked += walked;
+        if (syncsPerSecond > 0) {
+            tokens -= taken;
+        }
+        if (exhausted) {
+            finishPass(now);
+        }
+    }
+
+    /**
+     * @return How many syncs the bucket allows now.
+     */
+    private int refillTokens() {
+        if (syncsPerSecond <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        long nanos = System.nanoTime();
+        tokens = Math.min(burst, tokens + (nanos - lastRefillNanos) / 1_000_000_000.0 * syncsPerSecond);
+        lastRefillNanos = nanos;
+        return (int) tokens;
+    }
+
+    /**
+     * @return How many syncs fit into the Discord queue while keeping half of it free.
+     */
+    private int discordQueueHeadroom() {
+        DiscordManager discordManager = plugin.getDiscordManager();
+        DiscordTaskQueue queue = discordManager != null ? discordManager.getDiscordTaskQueue() : null;
+        if (queue == null) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(0, (queue.getRemainingCapacity() - queue.getCapacity() / 2) / DISCORD_REQUESTS_PER_SYNC);
+    }
+
+    private void startPass(long now) {
+        cursor = linkedPlayersManager.openLinkCursor(CHUNK_SIZE);
+        passStartMillis = now;
+        nextPassMillis = now + intervalMillis;
+        passLinkCount = linkedPlayersManager.getLinkCount();
+        passWalked = 0;
+        passStarted = 0;
+        Arrays.fill(passTierCounts, 0);
+        passStartFailures = 0;
+        passBackedOffSlices = 0;
+        passResults = new ArrayList<>(passLinkCount);
+        plugin.getLogger().fine("Periodic role synchronization of " + passLinkCount + " links started, spread over " + (intervalMillis / 1000L) + " seconds.");
+    }
+
+    private void finishPass(long now) {
+        cursor = null;
+        List<CompletableFuture<SyncResult>> results = passResults;
+        int startFailures = passStartFailures;
+        long passSeconds = (now - passStartMillis) / 1000L;
+        passResults = null;
+        passNumber++;
+        tierPolicy.expire(now, plugin.getLinkedPlayersManager());
+        if (now - passStartMillis > intervalMillis + SLICE_PERIOD_MILLIS) {
+            plugin.getLogger().warning("Periodic role synchronization of " + passStarted + " links took " + passSeconds + " seconds, longer than sync.interval-minutes. "
+                    + (passBackedOffSlices > 0 ? "It waited " + passBackedOffSlices + " times for the Discord queue to drain." : "Consider raising sync.syncs-per-second."));
+        }
+        String tiers = "Hot: " + passTierCounts[SyncTierPolicy.Tier.HOT.ordinal()] + ", Warm: " + passTierCounts[SyncTierPolicy.Tier.WARM.ordinal()]
+                + ", Dormant: " + passTierCounts[SyncTierPolicy.Tier.DORMANT.ordinal()] + ", Not due: " + (passWalked - passStarted);
+
+        // Every result completes by its deadline at the latest, so the summary is always logged
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            Map<SyncResult.Status, Integer> counts = new EnumMap<>(SyncResult.Status.class);
+            for (CompletableFuture<SyncResult> result : results) {
+                // Counted as failed should a result ever complete exceptionally
+                SyncResult.Status status = result.isCompletedExceptionally() ? SyncResult.Status.FAILED : result.join().status();
+                counts.merge(status, 1, Integer::sum);
+            }
+            plugin.getLogger().info("Periodic role synchronization task finished. " + tiers + ". Results: " + counts + ", Failed to start: " + startFailures + ", Total processed: " + (results.size() + startFailures));
+        });
+    }
 
-        for (Map.Entry<UUID, String> entry : allLinks.entrySet()) {
-            UUID mcUUID = entry.getKey();
-            String discordId = entry.getValue();
+    /**
+     * Fetches the Discord members of a batch of links together, then starts a sync for each link with its member.
+     * Members that could not be prefetched are retrieved by their own sync. Clears the batch.
+     */
+    private void syncBatch(List<UUID> mcUUIDs, List<Long> discordSnowflakes) {
+        DiscordManager discordManager = plugin.getDiscordManager();
+        Map<Long, Member> members = discordManager != null ? discordManager.prefetchMembers(discordSnowflakes) : Map.of();
+        for (int i = 0; i < mcUUIDs.size(); i++) {
+            UUID mcUUID = mcUUIDs.get(i);
+            long discordSnowflake = discordSnowflakes.get(i);
+            String discordId = Long.toString(discordSnowflake);
+            passStarted++;
             try {
                 // RoleSyncService methods are designed to be safe and log their own specific errors
-                roleSyncService.synchronizeRoles(mcUUID, discordId);
-                successCount++;
+                CompletableFuture<SyncResult> result = roleSyncService.synchronizeRoles(mcUUID, discordId, false, Priority.BACKGROUND, members.get(discordSnowflake));
+                result.thenAccept(completed -> {
+                    if (completed.madeChanges()) { // Completed or skipped syncs that found everything in sync stay cold
+                        tierPolicy.markChanged(mcUUID, System.currentTimeMillis());
+                    }
+                });
+                passResults.add(result);
             } catch (Exception e) {
                 plugin.getLogger().warning("Unexpected error during periodic sync for MC UUID: " + mcUUID + ", Discord ID: " + discordId);
                 e.printStackTrace();
-                failCount++;
+                passStartFailures++;
             }
         }
-        plugin.getLogger().info("Periodic role synchronization task finished. Synced: " + successCount + ", Failed: " + failCount + ", Total processed: " + allLinks.size());
+        mcUUIDs.clear();
+        discordSnowflakes.clear();
     }
 }
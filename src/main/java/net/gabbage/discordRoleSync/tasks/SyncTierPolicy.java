@@ -0,0 +1,93 @@
+package net.gabbage.discordRoleSync.tasks;
+
+import net.gabbage.discordRoleSync.managers.ConfigManager;
+import net.gabbage.discordRoleSync.storage.LinkMetadata;
+import net.gabbage.discordRoleSync.storage.LinkedPlayersManager;
+import org.bukkit.Bukkit;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which links a periodic pass synchronizes. Online players are hot and synced every pass. Links whose
+ * player was seen, linked or changed within {@code sync.tiers.warm-days} are warm and synced every
+ * {@code sync.tiers.warm-interval-minutes}. All other links are dormant and swept every
+ * {@code sync.tiers.dormant-interval-minutes}.
+ * <p>
+ * Links that keep failing, e.g. because the member left the guild, back off: after {@link #WARM_FAILURE_LIMIT} failed
+ * syncs in a row they are only swept with the dormant links until a sync succeeds again.
+ * <p>
+ * Warm and dormant links are spread over the passes of their interval by a hash of their UUID, so every pass takes
+ * an even share. The dormant interval is a whole multiple of the warm one, so a dormant link is only ever due in a
+ * pass where it would be due if it were warm; other links are rejected before anything costly is looked up.
+ */
+final class SyncTierPolicy {
+
+    enum Tier { HOT, WARM, DORMANT }
+
+    private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+    private static final int WARM_FAILURE_LIMIT = 3; // Failed syncs in a row after which a link is only swept with the dormant ones
+
+    private final long warmPasses; // Passes per warm interval
+    private final long dormantPasses; // Passes per dormant interval, a multiple of warmPasses
+    private final long warmWindowMillis;
+    private final Map<UUID, Long> lastSeen = new ConcurrentHashMap<>(); // Player data is read from disk at most once per linked player
+    private final Map<UUID, Long> lastChanged = new ConcurrentHashMap<>(); // Players whose periodic sync found something to change
+
+    SyncTierPolicy(ConfigManager configManager, long intervalMillis) {
+        this.warmPasses = Math.max(1L, configManager.getWarmTierIntervalMinutes() * 60_000L / intervalMillis);
+        long dormantPasses = Math.max(1L, configManager.getDormantTierIntervalMinutes() * 60_000L / intervalMillis);
+        this.dormantPasses = Math.max(1L, dormantPasses / warmPasses) * warmPasses;
+        this.warmWindowMillis = configManager.getWarmTierDays() * DAY_MILLIS;
+    }
+
+    /**
+     * @param pass Number of the pass, counting up by one per pass.
+     * @return The tier of the link if it is due in this pass, otherwise null.
+     */
+    Tier dueTier(UUID mcUUID, LinkMetadata metadata, long pass, long now) {
+        if (Bukkit.getPlayer(mcUUID) != null) {
+            lastSeen.put(mcUUID, now);
+            return Tier.HOT;
+        }
+        long slot = Math.floorMod(Long.hashCode(mcUUID.getMostSignificantBits() ^ mcUUID.getLeastSignificantBits()), dormantPasses);
+        if (Math.floorMod(pass, warmPasses) != slot % warmPasses) {
+            return null;
+        }
+        if (isWarm(mcUUID, metadata, now)) {
+            return Tier.WARM;
+        }
+        return Math.floorMod(pass, dormantPasses) == slot ? Tier.DORMANT : null;
+    }
+
+    private boolean isWarm(UUID mcUUID, LinkMetadata metadata, long now) {
+        if (metadata != null && metadata.failureCount() >= WARM_FAILURE_LIMIT) {
+            return false; // Backing off
+        }
+        if (metadata != null && now - metadata.linkedAt() < warmWindowMillis) {
+            return true;
+        }
+        Long changed = lastChanged.get(mcUUID);
+        if (changed != null && now - changed < warmWindowMillis) {
+            return true;
+        }
+        long seen = lastSeen.computeIfAbsent(mcUUID, key -> Bukkit.getOfflinePlayer(key).getLastPlayed());
+        return now - seen < warmWindowMillis;
+    }
+
+    void markChanged(UUID mcUUID, long now) {
+        lastChanged.put(mcUUID, now);
+    }
+
+    /**
+     * Forgets changes that no longer make a link warm, and everything about players who are no longer linked.
+     */
+    void expire(long now, LinkedPlayersManager linkedPlayersManager) {
+        lastChanged.values().removeIf(changed -> now - changed >= warmWindowMillis);
+        if (linkedPlayersManager != null) {
+            lastSeen.keySet().removeIf(mcUUID -> !linkedPlayersManager.isMcAccountLinked(mcUUID));
+            lastChanged.keySet().removeIf(mcUUID -> !linkedPlayersManager.isMcAccountLinked(mcUUID));
+        }
+    }
+}
@@ -2,62 +2,482 @@ package net.gabbage.discordRoleSync.util;
 
 import net.gabbage.discordRoleSync.DiscordRoleSync;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
 
+/**
+ * Runs blocking Discord requests off the calling thread. Tasks with the same key, typically the ID of the member
+ * they change, run one after another in the order they were submitted; tasks with different keys run in parallel on
+ * up to {@code discord.max-parallel-requests} threads. Discord rate limits requests per route and member, so a slow
+ * or rate limited member no longer holds up everyone else, while JDA still paces each route.
+ * <p>
+ * At most {@code discord.max-queued-requests} tasks wait at a time; further tasks are rejected, and producers that
+ * can wait, like the periodic sync, check {@link #getRemainingCapacity()} first. A task submitted with an operation
+ * replaces or merges into a task of the same key and operation that has not started yet, so repeated changes to one
+ * member cost one request and one queue slot.
+ * <p>
+ * Keys waiting for a thread sit in one lane per {@link Priority}, that of their most urgent task. Free threads take
+ * from the lanes by weighted round robin, so a player who just linked is served ahead of a bulk sync without
+ * starving it. A key runs one task per turn and then queues again, so a key with many tasks cannot hold a thread.
+ * <p>
+ * With {@code discord.virtual-threads}, each task runs on its own virtual thread instead of a pool thread. The
+ * requests block in {@code complete()} just the same, but a waiting virtual thread costs next to nothing, so
+ * {@code discord.max-parallel-requests} can be raised to whatever Discord's rate limits allow rather than to what
+ * the server can spare in threads.
+ */
 public class DiscordTaskQueue {
 
-    private final DiscordRoleSync plugin;
-    private final ExecutorService executorService; // Single thread executor to process tasks sequentially
+    /**
+     * Lanes from most to least urgent. While several lanes have work waiting, each gets a share of the threads in
+     * proportion to its weight.
+     */
+    public enum Priority {
+        /** Link confirmations, manual links and unlinks. */
+        LINK(8),
+        /** Syncs of players joining the server. */
+        JOIN(4),
+        /** Syncs requested with {@code /discord sync}, and in-game group changes. */
+        ADMIN(2),
+        /** The periodic sync. */
+        BACKGROUND(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * @param queued            Tasks of this priority waiting to run.
+     * @param averageWaitMillis Moving average of how long recent tasks of this priority waited before they ran.
+     * @param started           Tasks of this priority started since startup.
+     */
+    public record LaneStats(Priority priority, int queued, long averageWaitMillis, long started) {}
+
+    private static final String DEFAULT_KEY = ""; // Tasks submitted without a key run in order among themselves
+    private static final double WAIT_AVERAGE_WEIGHT = 0.1; // Weight of the newest wait in a lane's moving average
+
+    private final Logger logger;
+    private final ExecutorService executorService;
+    private final int parallelism;
+    private final int capacity;
+
+    // Guarded by this
+    private final Map<String, KeyQueue> keyQueues = new HashMap<>(); // Present while a key has tasks queued or running
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private int queuedCount; // Tasks waiting, not counting those running
+    private int runningCount;
+    private boolean closing; // No new tasks are accepted
+    private boolean stopped; // Set on forced shutdown; queued tasks are rejected instead of run
 
     public DiscordTaskQueue(DiscordRoleSync plugin) {
-        this.plugin = plugin;
-        // Using a single thread executor ensures tasks are run one after another in the order they are submitted.
-        this.executorService = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "DiscordTaskQueue-Processor");
-            t.setDaemon(true); // Allow JVM to exit if this is the only thread running
-            return t;
+        this(plugin.getLogger(), plugin.getConfigManager().getMaxParallelDiscordRequests(), plugin.getConfigManager().getMaxQueuedDiscordRequests(),
+                plugin.getConfigManager().shouldUseVirtualThreads());
+    }
+
+    public DiscordTaskQueue(Logger logger, int parallelism, int capacity, boolean virtualThreads) {
+        this.logger = logger;
+        this.parallelism = Math.max(1, parallelism);
+        this.capacity = Math.max(1, capacity);
+        for (Priority priority : Priority.values()) {
+            lanes[priority.ordinal()] = new Lane(priority);
+        }
+        if (virtualThreads) {
+            // At most parallelism tasks are handed over at a time, which caps the virtual threads as well
+            this.executorService = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("DiscordTaskQueue-Virtual-", 1).factory());
+        } else {
+            AtomicInteger threadNumber = new AtomicInteger();
+            // The pool is never handed more tasks than it has threads, so none wait in the pool's own queue
+            this.executorService = Executors.newFixedThreadPool(this.parallelism, r -> {
+                Thread t = new Thread(r, "DiscordTaskQueue-Processor-" + threadNumber.incrementAndGet());
+                t.setDaemon(true); // Allow JVM to exit if this is the only thread running
+                return t;
+            });
+        }
+        logger.info("DiscordTaskQueue initialized with " + this.parallelism + " parallel requests on " + (virtualThreads ? "virtual" : "platform")
+                + " threads and room for " + this.capacity + " queued requests.");
+    }
+
+    /**
+     * Runs the task in the {@link Priority#BACKGROUND} lane, in order with other tasks submitted without a key.
+     */
+    public CompletableFuture<Void> submit(Runnable task) {
+        return submit(DEFAULT_KEY, Priority.BACKGROUND, () -> {
+            task.run();
+            return null;
         });
-        plugin.getLogger().info("DiscordTaskQueue initialized.");
     }
 
-    public void submit(Runnable task) {
-        if (executorService.isShutdown() || executorService.isTerminated()) {
-            plugin.getLogger().warning("DiscordTaskQueue is shutdown. Cannot submit new task.");
-            // Optionally, run the task immediately or handle error
-            // For now, just log and drop.
-            return;
+    /**
+     * Runs the task in the {@link Priority#BACKGROUND} lane, in order with other tasks submitted without a key.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return submit(DEFAULT_KEY, Priority.BACKGROUND, task);
+    }
+
+    /**
+     * @param key Tasks with the same key run in submission order, e.g. the ID of the member the task changes.
+     * @return Completes with the task's result, or exceptionally if the task threw or was never run because the
+     *         queue is full or shut down, so callers waiting on it are never left hanging.
+     */
+    public <T> CompletableFuture<T> submit(String key, Priority priority, Supplier<T> task) {
+        return enqueue(key, null, priority, task, null);
+    }
+
+    /**
+     * Like {@link #submit(String, Priority, Supplier)}, but replaces a task of the same key and operation that has
+     * not started yet, e.g. an earlier nickname change. Both callers get the result of the task that runs, which
+     * takes the more urgent priority of the two.
+     */
+    public <T> CompletableFuture<T> submit(String key, String operation, Priority priority, Supplier<T> task) {
+        return enqueue(key, operation, priority, task, (earlier, later) -> later);
+    }
+
+    /**
+     * Like {@link #submit(String, String, Priority, Supplier)}, but combines the waiting task and the new one with
+     * merge instead of dropping the waiting one, e.g. into a single role update.
+     */
+    public <T, S extends Supplier<T>> CompletableFuture<T> submit(String key, String operation, Priority priority, S task, BinaryOperator<S> merge) {
+        return enqueue(key, operation, priority, task, merge);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, S extends Supplier<T>> CompletableFuture<T> enqueue(String key, String operation, Priority priority, S task, BinaryOperator<S> merge) {
+        CompletableFuture<T> result;
+        synchronized (this) {
+            if (closing) {
+                logger.warning("DiscordTaskQueue is shutdown. Cannot submit new task.");
+                return CompletableFuture.failedFuture(new RejectedExecutionException("DiscordTaskQueue is shut down"));
+            }
+            KeyQueue keyQueue = keyQueues.get(key);
+            QueuedTask<T> pending = keyQueue != null && operation != null ? (QueuedTask<T>) keyQueue.pendingByOperation.get(operation) : null;
+            if (pending != null) { // Not started yet, as starting it removes it
+                pending.task = merge.apply((S) pending.task, task);
+                if (priority.ordinal() < pending.priority.ordinal()) {
+                    lanes[pending.priority.ordinal()].queued--;
+                    lanes[priority.ordinal()].queued++;
+                    pending.priority = priority;
+                }
+                result = pending.result;
+            } else {
+                if (queuedCount >= capacity) {
+                    return CompletableFuture.failedFuture(new RejectedExecutionException("DiscordTaskQueue is full (" + capacity + " queued requests)"));
+                }
+                if (keyQueue == null) {
+                    keyQueue = new KeyQueue(key);
+                    keyQueues.put(key, keyQueue);
+                }
+                QueuedTask<T> queuedTask = new QueuedTask<>(operation, priority, task);
+                keyQueue.tasks.add(queuedTask);
+                if (operation != null) {
+                    keyQueue.pendingByOperation.put(operation, queuedTask);
+                }
+                queuedCount++;
+                lanes[priority.ordinal()].queued++;
+                result = queuedTask.result;
+            }
+            if (!keyQueue.running) {
+                makeReady(keyQueue, priority);
+            } // Otherwise the key queues again once its running task has finished
+        }
+        dispatch();
+        return result;
+    }
+
+    /**
+     * Queues the key in the lane of priority, or moves it there if it waits in a less urgent lane.
+     */
+    private void makeReady(KeyQueue keyQueue, Priority priority) {
+        if (keyQueue.lane != null) {
+            if (keyQueue.lane.ordinal() <= priority.ordinal()) {
+                return;
+            }
+            lanes[keyQueue.lane.ordinal()].readyKeys.remove(keyQueue);
+        }
+        keyQueue.lane = priority;
+        lanes[priority.ordinal()].readyKeys.add(keyQueue);
+    }
+
+    /**
+     * Starts the next task of ready keys while threads are free.
+     */
+    private void dispatch() {
+        List<Runnable> toStart = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (runningCount < parallelism && !stopped) {
+                Lane lane = nextLane();
+                if (lane == null) {
+                    break;
+                }
+                KeyQueue keyQueue = lane.readyKeys.poll();
+                keyQueue.lane = null;
+                QueuedTask<?> task = keyQueue.tasks.poll();
+                if (task.operation != null) {
+                    keyQueue.pendingByOperation.remove(task.operation);
+                }
+                queuedCount--;
+                lanes[task.priority.ordinal()].started(now - task.enqueuedNanos);
+                keyQueue.running = true;
+                runningCount++;
+                toStart.add(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        finished(keyQueue);
+                    }
+                });
+            }
         }
-        executorService.submit(() -> {
+        for (Runnable start : toStart) {
             try {
-                task.run();
+                executorService.execute(start);
+            } catch (RejectedExecutionException e) { // Stopped concurrently
+                start.run(); // Rejects the task and releases its key
+            }
+        }
+    }
+
+    /**
+     * Picks the lane to take the next key from by smooth weighted round robin over the lanes with keys waiting.
+     */
+    private Lane nextLane() {
+        Lane next = null;
+        int totalWeight = 0;
+        for (Lane lane : lanes) {
+            if (lane.readyKeys.isEmpty()) {
+                lane.credit = 0;
+                continue;
+            }
+            lane.credit += lane.priority.weight;
+            totalWeight += lane.priority.weight;
+            if (next == null || lane.credit > next.credit) {
+                next = lane;
+            }
+        }
+        if (next != null) {
+            next.credit -= totalWeight;
+        }
+        return next;
+    }
+
+    private void finished(KeyQueue keyQueue) {
+        synchronized (this) {
+            keyQueue.running = false;
+            runningCount--;
+            if (stopped) {
+                keyQueue.rejectRemaining();
+            }
+            if (keyQueue.tasks.isEmpty()) {
+                keyQueues.remove(keyQueue.key);
+            } else {
+                makeReady(keyQueue, keyQueue.mostUrgent());
+            }
+            if (runningCount == 0 && queuedCount == 0) {
+                notifyAll(); // Wakes a waiting shutdown
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * @return How many more tasks can be queued before new ones are rejected. Merged tasks take no extra room.
+     */
+    public synchronized int getRemainingCapacity() {
+        return Math.max(0, capacity - queuedCount);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public synchronized int getRunningCount() {
+        return runningCount;
+    }
+
+    /**
+     * @return One entry per priority, most urgent first.
+     */
+    public synchronized List<LaneStats> getLaneStats() {
+        List<LaneStats> stats = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) {
+            stats.add(new LaneStats(lane.priority, lane.queued, TimeUnit.NANOSECONDS.toMillis((long) lane.averageWaitNanos), lane.started));
+        }
+        return stats;
+    }
+
+    /**
+     * Guarded by DiscordTaskQueue.this.
+     */
+    private static final class Lane {
+        private final Priority priority;
+        private final ArrayDeque<KeyQueue> readyKeys = new ArrayDeque<>(); // Keys with tasks waiting and none running
+        private int credit; // Smooth weighted round robin state
+        private int queued; // Tasks of this priority, wherever their key waits
+        private double averageWaitNanos;
+        private long started;
+
+        private Lane(Priority priority) {
+            this.priority = priority;
+        }
+
+        private void started(long waitNanos) {
+            queued--;
+            averageWaitNanos = started == 0 ? waitNanos : averageWaitNanos + WAIT_AVERAGE_WEIGHT * (waitNanos - averageWaitNanos);
+            started++;
+        }
+    }
+
+    /**
+     * The tasks of one key. At most one of them runs at a time; while none does and some wait, the key is in the
+     * lane of its most urgent task. Guarded by DiscordTaskQueue.this.
+     */
+    private final class KeyQueue {
+        private final String key;
+        private final ArrayDeque<QueuedTask<?>> tasks = new ArrayDeque<>();
+        private final Map<String, QueuedTask<?>> pendingByOperation = new HashMap<>(); // Waiting tasks that later ones may merge into
+        private boolean running;
+        private Priority lane; // Null while running or empty
+
+        private KeyQueue(String key) {
+            this.key = key;
+        }
+
+        private Priority mostUrgent() {
+            Priority mostUrgent = Priority.BACKGROUND;
+            for (QueuedTask<?> task : tasks) {
+                if (task.priority.ordinal() < mostUrgent.ordinal()) {
+                    mostUrgent = task.priority;
+                }
+            }
+            return mostUrgent;
+        }
+
+        private void rejectRemaining() {
+            QueuedTask<?> task;
+            while ((task = tasks.poll()) != null) {
+                queuedCount--;
+                lanes[task.priority.ordinal()].queued--;
+                task.reject();
+            }
+            pendingByOperation.clear();
+        }
+    }
+
+    private final class QueuedTask<T> implements Runnable {
+        private final String operation; // Null if later tasks may not merge into this one
+        private final long enqueuedNanos = System.nanoTime();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        // Changed by merges, under DiscordTaskQueue.this, until the task starts
+        private Supplier<T> task;
+        private Priority priority;
+
+        private QueuedTask(String operation, Priority priority, Supplier<T> task) {
+            this.operation = operation;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (isStopped()) {
+                reject();
+                return;
+            }
+            try {
+                result.complete(task.get());
             } catch (Exception e) {
-                plugin.getLogger().severe("Error executing Discord task: " + e.getMessage());
+                logger.severe("Error executing Discord task: " + e.getMessage());
                 e.printStackTrace();
+                result.completeExceptionally(e);
             }
-        });
+        }
+
+        private void reject() {
+            result.completeExceptionally(new RejectedExecutionException("DiscordTaskQueue is shut down"));
+        }
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
     }
 
     public void shutdown() {
-        plugin.getLogger().info("Shutting down DiscordTaskQueue...");
-        executorService.shutdown(); // Disable new tasks from being submitted
+        logger.info("Shutting down DiscordTaskQueue...");
         try {
-            // Wait a while for existing tasks to terminate
-            if (!executorService.awaitTermination(10, TimeUnit.SECONDS)) {
-                plugin.getLogger().warning("DiscordTaskQueue did not terminate in 10 seconds. Forcing shutdown...");
-                executorService.shutdownNow(); // Cancel currently executing tasks
+            // Wait a while for queued and running tasks to finish
+            if (awaitIdle(TimeUnit.SECONDS.toNanos(10))) {
+                executorService.shutdown();
+            } else {
+                logger.warning("DiscordTaskQueue did not terminate in 10 seconds. Forcing shutdown...");
+                stopNow(); // Cancel currently executing tasks
                 // Wait a while for tasks to respond to being cancelled
                 if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
-                    plugin.getLogger().severe("DiscordTaskQueue did not terminate even after forcing.");
+                    logger.severe("DiscordTaskQueue did not terminate even after forcing.");
                 }
             }
         } catch (InterruptedException ie) {
             // (Re-)Cancel if current thread also interrupted
-            executorService.shutdownNow();
+            stopNow();
             // Preserve interrupt status
             Thread.currentThread().interrupt();
         }
-        plugin.getLogger().info("DiscordTaskQueue shut down.");
+        logger.info("DiscordTaskQueue shut down.");
+    }
+
+    /**
+     * Stops accepting tasks and waits for those queued and running to finish.
+     *
+     * @return Whether they finished in time.
+     */
+    private synchronized boolean awaitIdle(long timeoutNanos) throws InterruptedException {
+        closing = true;
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (runningCount > 0 || queuedCount > 0) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return true;
+    }
+
+    private void stopNow() {
+        synchronized (this) {
+            closing = true;
+            stopped = true; // Running tasks' keys reject what is left once they finish
+            for (KeyQueue keyQueue : new ArrayList<>(keyQueues.values())) {
+                keyQueue.rejectRemaining();
+                if (!keyQueue.running) {
+                    keyQueues.remove(keyQueue.key);
+                }
+            }
+            for (Lane lane : lanes) {
+                lane.readyKeys.clear();
+            }
+        }
+        executorService.shutdownNow();
     }
 }
@@ -0,0 +1,388 @@
+package net.gabbage.discordRoleSync.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress tests the open-addressing {@link LinkIndex} against plain HashMaps holding the same links, on one thread and
+ * with writers racing the optimistic readers.
+ */
+class LinkIndexTest {
+
+    /**
+     * Plain reference implementation: one map per direction plus the metadata, kept one-to-one like the index.
+     */
+    private static final class Reference {
+        final Map<UUID, Long> discordIds = new HashMap<>();
+        final Map<Long, UUID> uuids = new HashMap<>();
+        final Map<UUID, LinkMetadata> metadata = new HashMap<>();
+
+        void put(UUID uuid, long discordId, LinkMetadata linkMetadata) {
+            remove(uuid);
+            UUID previousOwner = uuids.get(discordId);
+            if (previousOwner != null) {
+                remove(previousOwner);
+            }
+            discordIds.put(uuid, discordId);
+            uuids.put(discordId, uuid);
+            metadata.put(uuid, linkMetadata);
+        }
+
+        Long remove(UUID uuid) {
+            Long discordId = discordIds.remove(uuid);
+            if (discordId != null) {
+                uuids.remove(discordId);
+                metadata.remove(uuid);
+            }
+            return discordId;
+        }
+    }
+
+    @Test
+    void randomOperationsMatchReference() {
+        Random random = new Random(42);
+        LinkIndex index = new LinkIndex();
+        Reference reference = new Reference();
+        // Small key pools so re-links, stolen Discord IDs and removals of linked players are frequent
+        List<UUID> uuidPool = randomUuids(random, 3_000);
+        long[] discordIdPool = randomDiscordIds(random, 3_000);
+
+        for (int step = 0; step < 200_000; step++) {
+            UUID uuid = uuidPool.get(random.nextInt(uuidPool.size()));
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                long discordId = discordIdPool[random.nextInt(discordIdPool.length)];
+                LinkMetadata metadata = randomMetadata(random);
+                index.put(msb, lsb, discordId, metadata);
+                reference.put(uuid, discordId, metadata);
+            } else if (operation < 8) {
+                Long expected = reference.remove(uuid);
+                assertEquals(expected == null ? LinkIndex.NO_LINK : expected, index.removeByUuid(msb, lsb), "removeByUuid at step " + step);
+            } else if (operation < 9) {
+                LinkMetadata metadata = randomMetadata(random);
+                boolean linked = reference.discordIds.containsKey(uuid);
+                assertEquals(linked, index.setMetadata(msb, lsb, metadata), "setMetadata at step " + step);
+                if (linked) {
+                    reference.metadata.put(uuid, metadata);
+                }
+            } else {
+                boolean success = random.nextBoolean();
+                long fingerprint = random.nextLong();
+                long agreedState = random.nextLong();
+                long time = random.nextLong() & Long.MAX_VALUE;
+                LinkMetadata current = reference.metadata.get(uuid);
+                assertEquals(current != null, index.recordSync(msb, lsb, success, fingerprint, agreedState, time), "recordSync at step " + step);
+                if (current != null) {
+                    reference.metadata.put(uuid, success
+                            ? new LinkMetadata(current.linkedAt(), time, fingerprint, 0, agreedState)
+                            : new LinkMetadata(current.linkedAt(), current.lastSyncAt(), current.stateFingerprint(), current.failureCount() + 1, current.agreedState()));
+                }
+            }
+            assertEquals(reference.discordIds.size(), index.size(), "size at step " + step);
+            if (step % 5_000 == 0) {
+                assertMatches(reference, index, uuidPool, discordIdPool);
+            }
+        }
+        assertMatches(reference, index, uuidPool, discordIdPool);
+    }
+
+    @Test
+    void growsAndEmptiesRepeatedly() {
+        Random random = new Random(7);
+        LinkIndex index = new LinkIndex();
+        Reference reference = new Reference();
+        List<UUID> uuidPool = randomUuids(random, 20_000);
+        long[] discordIdPool = randomDiscordIds(random, 20_000);
+
+        for (int round = 0; round < 3; round++) {
+            // Fill far past the initial capacity so the tables are rebuilt several times
+            for (int i = 0; i < uuidPool.size(); i++) {
+                UUID uuid = uuidPool.get(i);
+                LinkMetadata metadata = LinkMetadata.linkedAt(i);
+                index.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), discordIdPool[i], metadata);
+                reference.put(uuid, discordIdPool[i], metadata);
+            }
+            assertMatches(reference, index, uuidPool, discordIdPool);
+
+            // Remove in random order, checking along the way that the backward shifts keep every run reachable
+            List<UUID> removalOrder = new ArrayList<>(uuidPool);
+            Collections.shuffle(removalOrder, random);
+            for (int i = 0; i < removalOrder.size(); i++) {
+                UUID uuid = removalOrder.get(i);
+                assertEquals((long) reference.remove(uuid), index.removeByUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+                if (i % 2_500 == 0) {
+                    assertMatches(reference, index, uuidPool, discordIdPool);
+                }
+            }
+            assertEquals(0, index.size());
+            assertMatches(reference, index, uuidPool, discordIdPool);
+        }
+    }
+
+    @Test
+    void collidingUuidsSurviveDeletions() {
+        Random random = new Random(99);
+        LinkIndex index = new LinkIndex();
+        Reference reference = new Reference();
+        // The UUID hash mixes msb ^ rotateLeft(lsb, 32), so keeping that constant puts every UUID in one probe run
+        long collidingBits = random.nextLong();
+        List<UUID> uuidPool = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            long lsb = random.nextLong();
+            uuidPool.add(new UUID(collidingBits ^ Long.rotateLeft(lsb, 32), lsb));
+        }
+        long[] discordIdPool = randomDiscordIds(random, 500);
+
+        for (int step = 0; step < 20_000; step++) {
+            int i = random.nextInt(uuidPool.size());
+            UUID uuid = uuidPool.get(i);
+            if (random.nextInt(3) < 2) {
+                LinkMetadata metadata = randomMetadata(random);
+                index.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), discordIdPool[i], metadata);
+                reference.put(uuid, discordIdPool[i], metadata);
+            } else {
+                Long expected = reference.remove(uuid);
+                assertEquals(expected == null ? LinkIndex.NO_LINK : expected, index.removeByUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+            }
+            if (step % 500 == 0) {
+                assertMatches(reference, index, uuidPool, discordIdPool);
+            }
+        }
+        assertMatches(reference, index, uuidPool, discordIdPool);
+    }
+
+    @Test
+    void clearForgetsEveryLink() {
+        LinkIndex index = new LinkIndex();
+        Random random = new Random(1);
+        List<UUID> uuids = randomUuids(random, 100);
+        long[] discordIds = randomDiscordIds(random, 100);
+        for (int i = 0; i < uuids.size(); i++) {
+            index.put(uuids.get(i).getMostSignificantBits(), uuids.get(i).getLeastSignificantBits(), discordIds[i], LinkMetadata.NONE);
+        }
+        index.clear();
+        assertEquals(0, index.size());
+        assertMatches(new Reference(), index, uuids, discordIds);
+    }
+
+    @Test
+    void concurrentReadersSeeConsistentLinks() throws Exception {
+        int writers = 4;
+        int readers = 4;
+        int playersPerWriter = 5_000;
+        int operationsPerWriter = 200_000;
+        LinkIndex index = new LinkIndex();
+        Random seeds = new Random(2024);
+        List<UUID> uuids = randomUuids(seeds, writers * playersPerWriter);
+        // Player i only ever links to one of the four IDs starting at discordIdBase(i), so any other ID is a torn read
+        Map<Long, Integer> playerByBase = new HashMap<>();
+        for (int i = 0; i < uuids.size(); i++) {
+            playerByBase.put(discordIdBase(i), i);
+        }
+        List<Map<UUID, Long>> written = new ArrayList<>();
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writerThreads = new ArrayList<>();
+        List<Thread> readerThreads = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            long seed = seeds.nextLong();
+            Map<UUID, Long> reference = new HashMap<>(); // Only touched by this writer until it is joined
+            written.add(reference);
+            writerThreads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                awaitQuietly(start);
+                for (int step = 0; step < operationsPerWriter; step++) {
+                    // Writers own disjoint players, so each reference map is exact for its share of the index
+                    int player = writer + writers * random.nextInt(playersPerWriter);
+                    UUID uuid = uuids.get(player);
+                    long msb = uuid.getMostSignificantBits();
+                    long lsb = uuid.getLeastSignificantBits();
+                    int operation = random.nextInt(10);
+                    if (operation < 6) {
+                        long discordId = discordIdBase(player) + random.nextInt(4);
+                        long value = random.nextLong();
+                        index.put(msb, lsb, discordId, new LinkMetadata(value, value, value, 0, value));
+                        reference.put(uuid, discordId);
+                    } else if (operation < 9) {
+                        index.removeByUuid(msb, lsb);
+                        reference.remove(uuid);
+                    } else {
+                        long value = random.nextLong();
+                        index.recordSync(msb, lsb, true, value, value, value);
+                    }
+                }
+            }, "LinkIndexTest-Writer-" + w));
+        }
+        for (int r = 0; r < readers; r++) {
+            long seed = seeds.nextLong();
+            readerThreads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                long[] buffer = new long[3 * 256];
+                awaitQuietly(start);
+                while (writing.get() && failures.isEmpty()) {
+                    int player = random.nextInt(uuids.size());
+                    UUID uuid = uuids.get(player);
+                    long msb = uuid.getMostSignificantBits();
+                    long lsb = uuid.getLeastSignificantBits();
+                    long base = discordIdBase(player);
+
+                    long discordId = index.getDiscordId(msb, lsb);
+                    if (discordId != LinkIndex.NO_LINK && (discordId < base || discordId >= base + 4)) {
+                        failures.add("UUID " + uuid + " resolved to foreign Discord ID " + discordId);
+                    }
+                    if (discordId != LinkIndex.NO_LINK) {
+                        // The link may be gone by now, but it can never point back at another player
+                        UUID owner = index.getMcUUID(discordId);
+                        if (owner != null && !owner.equals(uuid)) {
+                            failures.add("Discord ID " + discordId + " of " + uuid + " resolved back to " + owner);
+                        }
+                    }
+                    UUID reverse = index.getMcUUID(base + random.nextInt(4));
+                    if (reverse != null && !reverse.equals(uuid)) {
+                        failures.add("Discord ID of player " + player + " resolved to foreign UUID " + reverse);
+                    }
+                    LinkMetadata metadata = index.getMetadata(msb, lsb);
+                    if (metadata != null && (metadata.lastSyncAt() != metadata.stateFingerprint() || metadata.stateFingerprint() != metadata.agreedState())) {
+                        failures.add("Torn metadata for " + uuid + ": " + metadata);
+                    }
+
+                    if (random.nextInt(1_000) == 0) {
+                        // The dense entry views must pair every UUID with one of its own IDs as well
+                        int count = index.copyRange(random.nextInt(Math.max(1, index.size())), buffer);
+                        for (int i = 0; i < count; i++) {
+                            Integer owner = playerByBase.get(buffer[i * 3 + 2] & ~3L);
+                            if (owner == null || !uuids.get(owner).equals(new UUID(buffer[i * 3], buffer[i * 3 + 1]))) {
+                                failures.add("copyRange paired " + new UUID(buffer[i * 3], buffer[i * 3 + 1]) + " with " + buffer[i * 3 + 2]);
+                            }
+                        }
+                    }
+                }
+            }, "LinkIndexTest-Reader-" + r));
+        }
+
+        readerThreads.forEach(Thread::start);
+        writerThreads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : writerThreads) {
+            thread.join(TimeUnit.MINUTES.toMillis(2));
+            assertFalse(thread.isAlive(), thread.getName() + " did not finish");
+        }
+        writing.set(false);
+        for (Thread thread : readerThreads) {
+            thread.join(TimeUnit.MINUTES.toMillis(1));
+            assertFalse(thread.isAlive(), thread.getName() + " did not finish");
+        }
+        assertTrue(failures.isEmpty(), () -> failures.size() + " inconsistent reads, first: " + failures.peek());
+
+        Reference reference = new Reference();
+        for (Map<UUID, Long> links : written) {
+            links.forEach((uuid, discordId) -> reference.put(uuid, discordId, null));
+        }
+        assertEquals(reference.discordIds.size(), index.size());
+        for (int i = 0; i < uuids.size(); i++) {
+            UUID uuid = uuids.get(i);
+            Long expected = reference.discordIds.get(uuid);
+            assertEquals(expected == null ? LinkIndex.NO_LINK : expected, index.getDiscordId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+            for (int offset = 0; offset < 4; offset++) {
+                long discordId = discordIdBase(i) + offset;
+                assertEquals(reference.uuids.get(discordId), index.getMcUUID(discordId));
+            }
+        }
+    }
+
+    private static long discordIdBase(int player) {
+        return 100_000_000_000_000_000L + player * 4L; // Multiples of 4 in the range of real snowflakes
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks every pool key in both directions, plus size, metadata and the dense entry views.
+     */
+    private static void assertMatches(Reference reference, LinkIndex index, List<UUID> uuidPool, long[] discordIdPool) {
+        assertEquals(reference.discordIds.size(), index.size());
+        for (UUID uuid : uuidPool) {
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            Long expected = reference.discordIds.get(uuid);
+            assertEquals(expected == null ? LinkIndex.NO_LINK : expected, index.getDiscordId(msb, lsb), "Discord ID of " + uuid);
+            assertEquals(expected != null, index.containsUuid(msb, lsb));
+            assertEquals(reference.metadata.get(uuid), index.getMetadata(msb, lsb), "metadata of " + uuid);
+        }
+        for (long discordId : discordIdPool) {
+            UUID expected = reference.uuids.get(discordId);
+            assertEquals(expected, index.getMcUUID(discordId), "UUID of " + discordId);
+            assertEquals(expected != null, index.containsDiscordId(discordId));
+        }
+
+        Map<UUID, Long> visited = new HashMap<>();
+        index.forEach((msb, lsb, discordId) -> assertNull(visited.put(new UUID(msb, lsb), discordId), "visited twice"));
+        assertEquals(reference.discordIds, visited);
+
+        Map<UUID, Long> copied = new HashMap<>();
+        long[] buffer = new long[3 * 64];
+        for (int from = 0, count; (count = index.copyRange(from, buffer)) > 0; from += count) {
+            for (int i = 0; i < count; i++) {
+                copied.put(new UUID(buffer[i * 3], buffer[i * 3 + 1]), buffer[i * 3 + 2]);
+            }
+        }
+        assertEquals(reference.discordIds, copied);
+
+        List<LinkStore.Change> snapshot = index.snapshot();
+        assertEquals(reference.discordIds.size(), snapshot.size());
+        for (LinkStore.Change change : snapshot) {
+            assertTrue(change.isLink());
+            assertEquals(Long.toString(reference.discordIds.get(change.mcUUID())), change.discordId());
+            assertEquals(reference.metadata.get(change.mcUUID()), change.metadata());
+        }
+        assertFalse(index.containsDiscordId(LinkIndex.NO_LINK));
+    }
+
+    private static List<UUID> randomUuids(Random random, int count) {
+        List<UUID> uuids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            uuids.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+        return uuids;
+    }
+
+    private static long[] randomDiscordIds(Random random, int count) {
+        long[] discordIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            discordIds[i] = random.nextLong() & Long.MAX_VALUE;
+        }
+        return discordIds;
+    }
+
+    private static LinkMetadata randomMetadata(Random random) {
+        return new LinkMetadata(random.nextLong() & Long.MAX_VALUE, random.nextLong() & Long.MAX_VALUE, random.nextLong(), random.nextInt(5), random.nextLong());
+    }
+}
@@ -0,0 +1,183 @@
+package net.gabbage.discordRoleSync.util;
+
+import net.gabbage.discordRoleSync.util.DiscordTaskQueue.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@link DiscordTaskQueue} against a fake Discord REST API that blocks like JDA's {@code complete()}.
+ * Concurrency is asserted from what the fake observed, never from elapsed time.
+ */
+class DiscordTaskQueueTest {
+
+    private static final Logger LOGGER = Logger.getLogger(DiscordTaskQueueTest.class.getName());
+    private static final long WAIT_SECONDS = 30; // Only reached if the queue is broken
+
+    /**
+     * Stand-in for Discord's REST API: each request blocks its thread until the gate opens. Records how many
+     * requests were in flight at once, overall and per member, and the order each member's requests were served in.
+     */
+    private static final class FakeDiscordRest {
+        private final CountDownLatch gate;
+        private final CountDownLatch arrivals; // Counted down by every request as it arrives
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private final Map<String, AtomicInteger> inFlightByMember = new ConcurrentHashMap<>();
+        private final Map<String, List<Integer>> servedByMember = new ConcurrentHashMap<>();
+        private volatile boolean memberOverlap;
+
+        FakeDiscordRest(CountDownLatch gate, CountDownLatch arrivals) {
+            this.gate = gate;
+            this.arrivals = arrivals;
+        }
+
+        /**
+         * A fake whose requests answer right away.
+         */
+        static FakeDiscordRest open() {
+            return new FakeDiscordRest(new CountDownLatch(0), new CountDownLatch(0));
+        }
+
+        boolean request(String memberId, int sequence) {
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            AtomicInteger memberInFlight = inFlightByMember.computeIfAbsent(memberId, id -> new AtomicInteger());
+            if (memberInFlight.incrementAndGet() > 1) {
+                memberOverlap = true;
+            }
+            try {
+                servedByMember.computeIfAbsent(memberId, id -> Collections.synchronizedList(new ArrayList<>())).add(sequence);
+                arrivals.countDown();
+                return gate.await(WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                memberInFlight.decrementAndGet();
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    void tasksOfOneKeyRunInSubmissionOrder() throws Exception {
+        DiscordTaskQueue queue = new DiscordTaskQueue(LOGGER, 8, 10_000, false);
+        FakeDiscordRest rest = FakeDiscordRest.open();
+        Random random = new Random(3);
+        Priority[] priorities = Priority.values();
+        try {
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            for (int sequence = 0; sequence < 25; sequence++) {
+                for (int member = 0; member < 40; member++) {
+                    String memberId = "member-" + member;
+                    int taskSequence = sequence;
+                    // Mixed priorities reorder keys between lanes, but never the tasks of one key
+                    Priority priority = priorities[random.nextInt(priorities.length)];
+                    results.add(queue.submit(memberId, priority, () -> rest.request(memberId, taskSequence)));
+                }
+            }
+            awaitAll(results);
+
+            assertFalse(rest.memberOverlap, "two requests of one member ran at once");
+            List<Integer> expected = IntStream.range(0, 25).boxed().toList();
+            assertEquals(40, rest.servedByMember.size());
+            rest.servedByMember.forEach((memberId, served) -> assertEquals(expected, served, "order of " + memberId));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    void differentKeysRunConcurrently() throws Exception {
+        int parallelism = 4;
+        DiscordTaskQueue queue = new DiscordTaskQueue(LOGGER, parallelism, 100, false);
+        // Every task waits for all the others, so this only completes if all keys are in flight at the same time
+        CyclicBarrier allRunning = new CyclicBarrier(parallelism);
+        try {
+            List<CompletableFuture<Integer>> results = new ArrayList<>();
+            for (int member = 0; member < parallelism; member++) {
+                results.add(queue.submit("member-" + member, Priority.BACKGROUND, () -> {
+                    try {
+                        return allRunning.await(WAIT_SECONDS, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Keys did not run concurrently", e);
+                    }
+                }));
+            }
+            awaitAll(results);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    void fillsEveryThreadOnPlatformThreads() throws Exception {
+        assertFillsParallelism(16, false);
+    }
+
+    @Test
+    void fillsEveryThreadOnVirtualThreads() throws Exception {
+        assertFillsParallelism(64, true);
+    }
+
+    /**
+     * Queues 4 requests each for more members than there are threads while the fake holds every request, so the
+     * queue must start exactly parallelism requests for distinct members and no more. Once the gate opens, the rest
+     * must drain in order without one member's requests ever overlapping.
+     */
+    private static void assertFillsParallelism(int parallelism, boolean virtualThreads) throws Exception {
+        int members = parallelism * 2;
+        int requestsPerMember = 4;
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch threadsFilled = new CountDownLatch(parallelism);
+        FakeDiscordRest rest = new FakeDiscordRest(gate, threadsFilled);
+        DiscordTaskQueue queue = new DiscordTaskQueue(LOGGER, parallelism, 10_000, virtualThreads);
+        try {
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            for (int sequence = 0; sequence < requestsPerMember; sequence++) {
+                for (int member = 0; member < members; member++) {
+                    String memberId = "member-" + member;
+                    int taskSequence = sequence;
+                    results.add(queue.submit(memberId, Priority.BACKGROUND, () -> rest.request(memberId, taskSequence)));
+                }
+            }
+
+            assertTrue(threadsFilled.await(WAIT_SECONDS, TimeUnit.SECONDS), "fewer than " + parallelism + " requests ran at once");
+            // Every running request is held at the gate, so nothing can finish and let another one start
+            assertEquals(parallelism, rest.inFlight.get());
+            assertEquals(parallelism, queue.getRunningCount());
+            assertEquals(parallelism, rest.servedByMember.size(), "requests of one member ran at once");
+
+            gate.countDown();
+            awaitAll(results);
+            assertEquals(parallelism, rest.maxInFlight.get());
+            assertFalse(rest.memberOverlap, "two requests of one member ran at once");
+            List<Integer> expected = IntStream.range(0, requestsPerMember).boxed().toList();
+            rest.servedByMember.forEach((memberId, served) -> assertEquals(expected, served, "order of " + memberId));
+        } finally {
+            gate.countDown();
+            queue.shutdown();
+        }
+    }
+
+    private static void awaitAll(List<? extends CompletableFuture<?>> results) throws Exception {
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+}